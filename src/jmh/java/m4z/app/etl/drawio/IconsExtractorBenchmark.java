@@ -0,0 +1,67 @@
+package m4z.app.etl.drawio;
+
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Icon extraction from the sidebar of a palette, an operation covering all the icons of the palette, and icon naming,
+ * an operation covering all the library titles of the page.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IconsExtractorBenchmark {
+
+    private IconsExtractor extractor;
+    private List<String> labels;
+
+    @Setup
+    public void setup() {
+        extractor = OnlineFixtures.extractor();
+        labels = OnlineFixtures.labels();
+    }
+
+    @Benchmark
+    public void extractIcon(Palette palette, Blackhole blackhole) {
+        for (Element anchor : palette.iconAnchors) {
+            blackhole.consume(extractor.extractIcon(anchor));
+        }
+    }
+
+    /**
+     * Resolves an image embedded as a data url, on a copy as the resolved image replaces the reference.
+     */
+    @Benchmark
+    public Element loadImage(Palette palette) {
+        return extractor.loadImage(palette.nestedImageAnchor.clone().firstElementChild());
+    }
+
+    @Benchmark
+    public void toIconName(Blackhole blackhole) {
+        for (String label : labels) {
+            blackhole.consume(extractor.toIconName(label));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Palette {
+        @Param({OnlineFixtures.GENERAL, OnlineFixtures.APACHE})
+        String library;
+
+        List<Element> iconAnchors;
+        Element nestedImageAnchor;
+
+        @Setup
+        public void setup() {
+            iconAnchors = OnlineFixtures.iconAnchors(library);
+            nestedImageAnchor = OnlineFixtures.nestedImageAnchor(library);
+        }
+    }
+}
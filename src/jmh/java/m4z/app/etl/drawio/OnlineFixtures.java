@@ -0,0 +1,106 @@
+package m4z.app.etl.drawio;
+
+import m4z.app.config.AppConfig;
+import m4z.app.config.ConfigManager;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Benchmark inputs taken from the bundled draw.io page, read from {@code data/inputs/online.html} in the working
+ * directory unless {@code -Dbenchmark.page} points to another one.
+ */
+public class OnlineFixtures {
+    public static final String GENERAL = "General";
+    public static final String APACHE = "apache_software_foundation_logos";
+
+    private static Document page;
+    private static IconsExtractor extractor;
+
+    public static AppConfig config() {
+        return ConfigManager.getConfig();
+    }
+
+    public static synchronized IconsExtractor extractor() {
+        if (extractor == null) {
+            extractor = new IconsExtractor(config());
+        }
+        return extractor;
+    }
+
+    public static synchronized Document page() {
+        if (page == null) {
+            Path source = Paths.get(System.getProperty("benchmark.page", "data/inputs/online.html"));
+            try {
+                page = Jsoup.parse(source);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns copies of the icon items of a library, its name compared without accents.
+     * The bundled page was captured with the item titles hidden, each copy gets one as exported pages have them.
+     */
+    public static List<Element> iconAnchors(String library) {
+        Element sidebar = page().select("a[title].geTitle").stream()
+                .filter(anchor -> extractor().toPath(extractor().libraryName(anchor)).equals(library))
+                .findFirst()
+                .map(Element::nextElementSibling)
+                .orElseThrow(() -> new IllegalArgumentException("No icons palette " + library));
+        List<Element> anchors = new ArrayList<>();
+        for (Element item : sidebar.select("div.geSidebar>a.geItem")) {
+            Element holder = new Element("div");
+            holder.appendChild(item.clone());
+            holder.appendElement("div").addClass("geItemTitle").text(String.format("%s item %d", library, anchors.size()));
+            anchors.add(holder.firstElementChild());
+        }
+        return anchors;
+    }
+
+    /**
+     * Returns the icons of a library as the extractor writes them.
+     */
+    public static List<Element> icons(String library) {
+        return iconAnchors(library).stream()
+                .map(anchor -> extractor().extractIcon(anchor))
+                .filter(Objects::nonNull)
+                .map(icon -> extractor().toSvgElement(icon))
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    /**
+     * Returns an icon item whose image embeds the first icon of the library as a base64 data url, the way some
+     * palettes reference their images.
+     */
+    public static Element nestedImageAnchor(String library) {
+        Element icon = iconAnchors(library).getFirst();
+        String data = Base64.getEncoder().encodeToString(icon.selectFirst("svg").outerHtml().getBytes(StandardCharsets.UTF_8));
+        Element anchor = new Element("a").addClass("geItem");
+        anchor.appendElement("svg").attr("style", "width: 32px; height: 30px;")
+                .appendElement("g")
+                .appendElement("image").attr("xlink:href", "data:image/svg+xml;base64," + data);
+        return anchor;
+    }
+
+    /**
+     * Returns the library titles of the page, accents, slashes and spaces included.
+     */
+    public static List<String> labels() {
+        return page().select("a[title].geTitle").stream()
+                .map(anchor -> extractor().libraryName(anchor))
+                .toList();
+    }
+}
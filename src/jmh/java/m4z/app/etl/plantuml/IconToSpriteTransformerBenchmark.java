@@ -0,0 +1,68 @@
+package m4z.app.etl.plantuml;
+
+import m4z.app.etl.drawio.OnlineFixtures;
+import m4z.app.etl.svg.DefaultOptimizer;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sprite content of the optimized icons of a palette, an operation covering all of them, and sprite naming, an
+ * operation covering all the library titles of the page.
+ * The transformer works in place, {@link #copy} measures the copies it is given.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IconToSpriteTransformerBenchmark {
+
+    private IconToSpriteTransformer transformer;
+    private List<String> labels;
+
+    @Setup
+    public void setup() {
+        transformer = new IconToSpriteTransformer(OnlineFixtures.config());
+        labels = OnlineFixtures.labels();
+    }
+
+    @Benchmark
+    public void copy(Palette palette, Blackhole blackhole) {
+        for (Element icon : palette.icons) {
+            blackhole.consume(icon.clone());
+        }
+    }
+
+    @Benchmark
+    public void extractValidContent(Palette palette, Blackhole blackhole) {
+        for (Element icon : palette.icons) {
+            blackhole.consume(transformer.extractValidContent(icon.clone()));
+        }
+    }
+
+    @Benchmark
+    public void toSpriteName(Blackhole blackhole) {
+        for (String label : labels) {
+            blackhole.consume(transformer.toSpriteName(label));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Palette {
+        @Param({OnlineFixtures.GENERAL, OnlineFixtures.APACHE})
+        String library;
+
+        List<Element> icons;
+
+        @Setup
+        public void setup() {
+            DefaultOptimizer optimizer = new DefaultOptimizer(OnlineFixtures.config());
+            icons = OnlineFixtures.icons(library).stream().map(optimizer::optimize).toList();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package m4z.app.etl.svg;
+
+import m4z.app.etl.drawio.OnlineFixtures;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optimization of the icons of a palette as extracted, an operation covering all of them.
+ * The optimizer works in place, {@link #copy} measures the copies it is given.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DefaultOptimizerBenchmark {
+
+    @Param({OnlineFixtures.GENERAL, OnlineFixtures.APACHE})
+    String library;
+
+    private DefaultOptimizer optimizer;
+    private List<Element> icons;
+
+    @Setup
+    public void setup() {
+        optimizer = new DefaultOptimizer(OnlineFixtures.config());
+        icons = OnlineFixtures.icons(library);
+    }
+
+    @Benchmark
+    public void copy(Blackhole blackhole) {
+        for (Element icon : icons) {
+            blackhole.consume(icon.clone());
+        }
+    }
+
+    @Benchmark
+    public void optimize(Blackhole blackhole) {
+        for (Element icon : icons) {
+            blackhole.consume(optimizer.optimize(icon.clone()));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package m4z.app.etl.svg;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optimization of one icon file through the jsoup document against the event stream.
+ * Run with {@code -prof gc} to compare the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StreamingOptimizerBenchmark {
+
+    @Param({"10", "1000"})
+    int shapes;
+
+    private Path icon;
+    private Path optimized;
+    private DefaultOptimizer document;
+    private StreamingOptimizer streaming;
+
+    @Setup
+    public void setup() throws IOException {
+        //draw.io like export: custom attributes, wrapping groups and shapes sized in pixels
+        StringBuilder svg = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" style=\"width: 48.5px; height: 48.5px\" "
+                + "viewBox=\"0 0 48.5 48.5\" data-cell-id=\"1\">\n<g><g transform=\"translate(0.5,0.5)\">\n");
+        for (int i = 0; i < shapes; i++) {
+            svg.append("  <g data-cell-id=\"").append(i).append("\"><path d=\"M 5.29 25.29 L 24.4 6.18\" fill=\"none\" ")
+                    .append("stroke=\"#000000\" stroke-miterlimit=\"10\" font-size=\"12.5px\" pointer-events=\"all\"/><g></g></g>\n");
+        }
+        svg.append("</g></g>\n</svg>");
+        icon = Files.createTempFile("icon", ".svg");
+        optimized = Files.createTempFile("optimized", ".svg");
+        Files.writeString(icon, svg);
+        document = new DefaultOptimizer(null);
+        streaming = new StreamingOptimizer(null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(icon);
+        Files.deleteIfExists(optimized);
+    }
+
+    @Benchmark
+    public Path document() {
+        document.optimizeInternal(icon, optimized);
+        return optimized;
+    }
+
+    @Benchmark
+    public Path streaming() {
+        streaming.optimizeInternal(icon, optimized);
+        return optimized;
+    }
+}
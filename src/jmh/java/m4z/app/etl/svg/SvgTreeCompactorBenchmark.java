@@ -0,0 +1,61 @@
+package m4z.app.etl.svg;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.parser.Parser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group compaction of deeply nested icons: the former repeated selector loop against the single bottom-up pass.
+ * Both benchmarks pay for the same clone of the parsed icon.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SvgTreeCompactorBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int depth;
+
+    private Element icon;
+
+    @Setup
+    public void setup() {
+        //each level holds an empty group, a shape and the next level, the deepest levels collapsing into one group
+        StringBuilder svg = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\">");
+        for (int level = 0; level < depth; level++) {
+            svg.append("<g><g></g>");
+            if (level % 2 == 0) {
+                svg.append("<path d=\"M0 0h1v1z\"/>");
+            }
+        }
+        svg.append("<g><g><g><rect width=\"1\" height=\"1\"/></g></g></g>");
+        svg.append("</g>".repeat(depth)).append("</svg>");
+        icon = Jsoup.parse(svg.toString(), Parser.xmlParser()).selectFirst("svg");
+    }
+
+    @Benchmark
+    public Element selectorLoop() {
+        Element svg = icon.clone();
+        while ((svg.selectFirst("g:empty") != null) || (svg.selectFirst("g>g:only-child") != null)) {
+            svg.select("g:empty").forEach(Node::remove);
+            Element onlyChild = svg.selectFirst("g>g:only-child");
+            while (onlyChild != null) {
+                onlyChild.parent().replaceWith(onlyChild);
+                onlyChild = svg.selectFirst("g>g:only-child");
+            }
+        }
+        return svg;
+    }
+
+    @Benchmark
+    public Element bottomUpPass() {
+        return SvgTreeCompactor.compact(icon.clone());
+    }
+}
@@ -0,0 +1,26 @@
+package m4z.app.jmh;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks as the JMH launcher does, the allocation rate being always reported along with the score.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean gc = false;
+        for (int i = 0; i < arguments.size() - 1; i++) {
+            gc |= arguments.get(i).equals("-prof") && arguments.get(i + 1).startsWith("gc");
+        }
+        if (!gc) {
+            arguments.add("-prof");
+            arguments.add("gc");
+        }
+        Main.main(arguments.toArray(String[]::new));
+    }
+}
@@ -1,5 +1,6 @@
 package m4z.app.config;
 
+import java.util.List;
 import java.util.Objects;
 
 public record AppConfig(App app) {
@@ -7,13 +8,36 @@ public record AppConfig(App app) {
             String name,
             String version,
             Proxy proxy,
+            Http http,
+            Pipeline pipeline,
             Processor extractor,
             Processor optimizer,
-            Processor transformer
+            Processor transformer,
+            Metrics metrics
     ) {
         public App {
             Objects.requireNonNull(name, "App name cannot be null");
             Objects.requireNonNull(version, "App version cannot be null");
+            if (http == null) {
+                http = new Http(null, null, null, null, null, null);
+            }
+            if (pipeline == null) {
+                pipeline = new Pipeline(false, null, null);
+            }
+            if (metrics == null) {
+                metrics = new Metrics(false, null);
+            }
+        }
+
+        public record Metrics(
+                boolean active,
+                String path
+        ) {
+            public Metrics {
+                if (active) {
+                    Objects.requireNonNull(path, "Metrics path cannot be null when active");
+                }
+            }
         }
 
         public record Proxy(
@@ -29,6 +53,71 @@ public record AppConfig(App app) {
             }
         }
 
+        public record Http(
+                Integer connectTimeout,
+                Integer requestTimeout,
+                Integer maxConnectionsPerHost,
+                Integer maxRetries,
+                Integer backoff,
+                HttpCache cache
+        ) {
+            public Http {
+                if (connectTimeout == null) {
+                    connectTimeout = 10;
+                }
+                if (requestTimeout == null) {
+                    requestTimeout = 60;
+                }
+                if (maxConnectionsPerHost == null) {
+                    maxConnectionsPerHost = 4;
+                }
+                if (maxRetries == null) {
+                    maxRetries = 3;
+                }
+                if (backoff == null) {
+                    backoff = 500;
+                }
+                if (cache == null) {
+                    cache = new HttpCache(false, null, null, false);
+                }
+            }
+        }
+
+        public record HttpCache(
+                boolean active,
+                String path,
+                Integer maxSize,
+                boolean offline
+        ) {
+            public HttpCache {
+                if (active) {
+                    Objects.requireNonNull(path, "Cache path cannot be null when active");
+                }
+                if (maxSize == null) {
+                    maxSize = 512;
+                }
+            }
+        }
+
+        public record Pipeline(
+                boolean active,
+                Integer capacity,
+                List<String> persist
+        ) {
+            public Pipeline {
+                if (capacity == null) {
+                    capacity = 8;
+                }
+                if (persist == null) {
+                    persist = List.of();
+                }
+            }
+
+            public boolean persist(String stage) {
+                return persist.contains(stage);
+            }
+        }
+
         public record Input(
                 String path,
                 Filter filter
@@ -49,14 +138,96 @@ public record AppConfig(App app) {
             }
         }
 
+        public record Concurrency(
+                boolean active,
+                Integer threads,
+                boolean virtual
+        ) {
+            public Concurrency {
+                if ((threads == null) || (threads <= 0)) {
+                    threads = Runtime.getRuntime().availableProcessors();
+                }
+            }
+        }
+
         public record Processor(
                 String type,
                 Input input,
-                String output
+                String output,
+                String archive,
+                Concurrency concurrency,
+                boolean incremental,
+                String dedup,
+                Remote remote,
+                Layout layout,
+                Integer precision,
+                Report report
         ) {
             public Processor {
                 //Objects.requireNonNull(type, "Type cannot be null");
                 //Objects.requireNonNull(output, "Output path cannot be null");
+                if ((archive == null) || archive.isBlank()) {
+                    archive = "deflated";
+                }
+                if (concurrency == null) {
+                    concurrency = new Concurrency(false, null, false);
+                }
+                if (remote == null) {
+                    remote = new Remote(null, null, null);
+                }
+                if (layout == null) {
+                    layout = new Layout(null, null, null);
+                }
+                if ((precision != null) && (precision < 0)) {
+                    precision = null;
+                }
+                if (report == null) {
+                    report = new Report(false, null);
+                }
+            }
+        }
+
+        public record Report(
+                boolean active,
+                Integer worst
+        ) {
+            public Report {
+                if ((worst == null) || (worst < 0)) {
+                    worst = 20;
+                }
+            }
+        }
+
+        public record Layout(
+                String type,
+                Long maxBytes,
+                Integer maxSprites
+        ) {
+            public Layout {
+                if ((type == null) || type.isBlank()) {
+                    type = "bundle";
+                }
+                if ((maxBytes != null) && (maxBytes <= 0)) {
+                    maxBytes = null;
+                }
+                if ((maxSprites != null) && (maxSprites <= 0)) {
+                    maxSprites = null;
+                }
+            }
+        }
+
+        public record Remote(
+                String endpoint,
+                Integer window,
+                Integer failureThreshold
+        ) {
+            public Remote {
+                if ((window == null) || (window <= 0)) {
+                    window = 8;
+                }
+                if ((failureThreshold == null) || (failureThreshold <= 0)) {
+                    failureThreshold = 5;
+                }
             }
         }
 
@@ -0,0 +1,17 @@
+package m4z.app.etl;
+
+import org.jsoup.nodes.Element;
+
+import java.util.List;
+
+/**
+ * Icons of one library, handed from one stage of the {@link Pipeline} to the next without touching the disk.
+ *
+ * @param folder relative folder of the library, as the extractor would have written it
+ * @param icons  parsed icons of the library
+ */
+public record IconSet(String folder, List<Icon> icons) {
+
+    public record Icon(String name, Element svg) {
+    }
+}
@@ -0,0 +1,279 @@
+package m4z.app.etl;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import m4z.app.tools.Hashes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Writes icons once per distinct content, keyed by the digest of their markup with the whitespace between tags removed.
+ * <p>
+ * The first icon of a given content is written as is, the following ones become either hard links to it
+ * ({@link Mode#LINK}) or entries of an {@value #ALIASES} map stored at the root of the output ({@link Mode#ALIAS}),
+ * which the optimizer carries over and the transformer expands. An icon overwritten by another content, as happens
+ * when titles collide, hands its role over to one of its duplicates.
+ * <p>
+ * Icons written concurrently are given their rank in the document instead: they are all written as is and deduplicated
+ * once closed, the first ranked icon of each content becoming the original, as when written in document order.
+ */
+public class IconStore {
+    public static final String ALIASES = "aliases.json";
+    private static final Logger logger = Logger.getLogger(IconStore.class.getName());
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final Type ALIASES_TYPE = new TypeToken<Map<String, String>>() {
+    }.getType();
+
+    public enum Mode {
+        NONE, LINK, ALIAS;
+
+        public static Mode of(String value) {
+            return ((value == null) || value.isBlank()) ? NONE : valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Path root;
+    private final Mode mode;
+    /**
+     * Icon holding each content, the others linking or aliasing to it.
+     */
+    private final Map<String, Path> originals = new HashMap<>();
+    /**
+     * Content of each icon written so far, whether original, link or alias.
+     */
+    private final Map<Path, String> contents = new HashMap<>();
+    private final Map<Path, Path> aliases = new HashMap<>();
+    /**
+     * Content and rank of each icon written concurrently, deduplicated once closed.
+     */
+    private final Map<Path, Ranked> ranked = new HashMap<>();
+    private int duplicates;
+
+    public IconStore(Path root, Mode mode) {
+        this.root = root.toAbsolutePath();
+        this.mode = mode;
+    }
+
+    /**
+     * Writes an icon unless the same content was already written, deduplicated writes being serialized.
+     */
+    public void write(Path file, byte[] content) throws IOException {
+        if (mode == Mode.NONE) {
+            //written anew rather than truncated, the file may still be a link left by a previous run
+            Files.deleteIfExists(file);
+            Files.write(file, content);
+        } else {
+            synchronized (this) {
+                writeOnce(file.toAbsolutePath(), content);
+            }
+        }
+    }
+
+    /**
+     * Writes an icon as is, its duplicates being resolved by {@link #close()} in {@code rank} order, so that icons
+     * written concurrently end up as they would be in order.
+     */
+    public void write(Path file, byte[] content, long rank) throws IOException {
+        if (mode == Mode.NONE) {
+            write(file, content);
+            return;
+        }
+        Files.deleteIfExists(file);
+        Files.write(file, content);
+        synchronized (this) {
+            ranked.put(file.toAbsolutePath(), new Ranked(rank, hash(content)));
+        }
+    }
+
+    protected void writeOnce(Path file, byte[] content) throws IOException {
+        String hash = hash(content);
+        if (hash.equals(contents.get(file))) {
+            return;
+        }
+        release(file);
+        contents.put(file, hash);
+        Path original = originals.get(hash);
+        if (original == null) {
+            originals.put(hash, file);
+            Files.write(file, content);
+            return;
+        }
+        duplicates++;
+        if (mode == Mode.ALIAS) {
+            aliases.put(file, original);
+            return;
+        }
+        try {
+            Files.createLink(file, original);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.fine(String.format("Unable to link %s to %s, writing a copy: %s", file, original, e));
+            Files.write(file, content);
+        }
+    }
+
+    /**
+     * Stores the alias map, or removes the one of a previous run, and reports how many icons were not written again.
+     */
+    public synchronized void close() throws IOException {
+        dedupRanked();
+        Path file = root.resolve(ALIASES);
+        if (mode == Mode.ALIAS) {
+            Map<String, String> map = new TreeMap<>();
+            aliases.forEach((alias, original) -> map.put(relativize(alias), relativize(original)));
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                gson.toJson(map, writer);
+            }
+        } else {
+            Files.deleteIfExists(file);
+        }
+        if (mode != Mode.NONE) {
+            logger.info(String.format("%d distinct icon(s), %d duplicate(s) %s", originals.size(), duplicates,
+                    (mode == Mode.ALIAS) ? "aliased" : "linked"));
+        }
+    }
+
+    /**
+     * Frees an icon about to receive another content, one of its duplicates taking over as original.
+     */
+    protected void release(Path file) throws IOException {
+        String hash = contents.remove(file);
+        if (aliases.remove(file) != null) {
+            return;
+        }
+        if ((hash != null) && file.equals(originals.get(hash))) {
+            originals.remove(hash);
+            Optional<Path> successor = contents.entrySet().stream()
+                    .filter(entry -> entry.getValue().equals(hash))
+                    .map(Map.Entry::getKey)
+                    .min(Comparator.naturalOrder());
+            if (successor.isPresent()) {
+                Path next = successor.get();
+                originals.put(hash, next);
+                if (aliases.remove(next) != null) {
+                    Files.move(file, next, StandardCopyOption.REPLACE_EXISTING);
+                    aliases.replaceAll((alias, original) -> original.equals(file) ? next : original);
+                    return;
+                }
+            }
+        }
+        //written anew rather than truncated, the file may be a link shared with other icons
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Turns the icons written concurrently into links or aliases of the first ranked icon of their content.
+     */
+    protected void dedupRanked() throws IOException {
+        List<Map.Entry<Path, Ranked>> icons = new ArrayList<>(ranked.entrySet());
+        icons.sort(Map.Entry.comparingByValue(Comparator.comparingLong(Ranked::rank)));
+        ranked.clear();
+        for (Map.Entry<Path, Ranked> icon : icons) {
+            Path file = icon.getKey();
+            String hash = icon.getValue().hash();
+            contents.put(file, hash);
+            Path original = originals.putIfAbsent(hash, file);
+            if (original == null) {
+                continue;
+            }
+            duplicates++;
+            if (mode == Mode.ALIAS) {
+                Files.delete(file);
+                aliases.put(file, original);
+                continue;
+            }
+            //linked aside then moved over, the icon is kept as a copy when it cannot be linked
+            Path link = file.resolveSibling(file.getFileName() + ".link");
+            try {
+                Files.deleteIfExists(link);
+                Files.createLink(link, original);
+                Files.move(link, file, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.fine(String.format("Unable to link %s to %s, keeping a copy: %s", file, original, e));
+            }
+        }
+    }
+
+    /**
+     * Digests UTF-8 markup trimmed and without whitespace between tags, working on the bytes since both are ASCII.
+     */
+    private static String hash(byte[] content) {
+        int start = 0;
+        int end = content.length;
+        while ((start < end) && ((content[start] & 0xff) <= ' ')) {
+            start++;
+        }
+        while ((end > start) && ((content[end - 1] & 0xff) <= ' ')) {
+            end--;
+        }
+        byte[] normalized = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            normalized[length++] = content[i];
+            if (content[i] == '>') {
+                int next = i + 1;
+                while ((next < end) && isWhitespace(content[next])) {
+                    next++;
+                }
+                if ((next > i + 1) && (next < end) && (content[next] == '<')) {
+                    i = next - 1;
+                }
+            }
+        }
+        return Hashes.sha256(Arrays.copyOf(normalized, length));
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == 0x0b) || (b == '\f') || (b == '\r');
+    }
+
+    private String relativize(Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    protected record Ranked(long rank, String hash) {
+    }
+
+    /**
+     * Returns the aliases stored at the root of a directory, each alias mapped to its original, both relative to it.
+     */
+    public static Map<String, String> loadAliases(Path root) {
+        Path file = root.resolve(ALIASES);
+        if (!Files.exists(file)) {
+            return Map.of();
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Map<String, String> aliases = gson.fromJson(reader, ALIASES_TYPE);
+            return (aliases != null) ? aliases : Map.of();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Carries the aliases of a directory over to its processed copy, removing stale ones.
+     */
+    public static void copyAliases(Path source, Path target) {
+        try {
+            Path aliases = source.resolve(ALIASES);
+            if (Files.exists(aliases)) {
+                Files.createDirectories(target);
+                Files.copy(aliases, target.resolve(ALIASES), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(target.resolve(ALIASES));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package m4z.app.etl;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Turns library and icon titles into folder, file and sprite names, and keeps those names unique.
+ * <p>
+ * Names are sanitized in a single scan of their characters, accents being stripped through a Unicode decomposition
+ * only when non-ASCII characters are present, and the results are memoized in bounded caches shared by every stage.
+ * <p>
+ * Names meant for the same folder or sprite file are claimed in a {@link Scope}, a name already taken getting the first
+ * free {@code _2}, {@code _3}... suffix in claim order, and a blank name being claimed as {@value #PLACEHOLDER}. Each
+ * rename is recorded as an alias of the name it collided with, and stored as {@value #NAMES} at the root of the output.
+ */
+public class NameNormalizer {
+    public static final String NAMES = "names.json";
+    /**
+     * Name given to untitled icons, and to titles left empty once sanitized.
+     */
+    public static final String PLACEHOLDER = "icon";
+    private static final Logger logger = Logger.getLogger(NameNormalizer.class.getName());
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    protected static final int MEMO_SIZE = 4096;
+
+    private static final Map<String, String> iconNames = memo();
+    private static final Map<String, String> spriteNames = memo();
+    private static final Map<String, String> paths = memo();
+
+    private final Map<String, Scope> scopes = new ConcurrentHashMap<>();
+
+    /**
+     * Icon name of a title: trimmed, without parentheses and ampersands, separators and blanks collapsed into an
+     * underscore, and stripped of its accents.
+     */
+    public static String toIconName(String description) {
+        return memoize(iconNames, description, key -> removeAccents(sanitize(key.trim())));
+    }
+
+    /**
+     * Sprite name of an icon name, sanitized as {@link #toIconName(String)} does but neither trimmed nor stripped of
+     * accents.
+     */
+    public static String toSpriteName(String name) {
+        return memoize(spriteNames, name, NameNormalizer::sanitize);
+    }
+
+    /**
+     * Relative folder of a library title, each {@code /} separated part being trimmed and stripped of its accents.
+     */
+    public static String toPath(String libraryName) {
+        return memoize(paths, libraryName, key -> {
+            StringJoiner path = new StringJoiner("/");
+            for (String part : key.trim().split("/")) {
+                path.add(removeAccents(part.trim()));
+            }
+            return path.toString();
+        });
+    }
+
+    public static String removeAccents(String text) {
+        if ((text == null) || isAscii(text)) {
+            return text;
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder stripped = new StringBuilder(decomposed.length());
+        decomposed.codePoints()
+                .filter(codePoint -> !isMark(codePoint))
+                .forEach(stripped::appendCodePoint);
+        return stripped.toString();
+    }
+
+    /**
+     * Drops {@code ( ) &}, replaces each run of blanks and {@code - , / : ? " < > | .} by an underscore, and removes
+     * {@code _$} sequences, all in one scan.
+     */
+    protected static String sanitize(String text) {
+        StringBuilder name = new StringBuilder(text.length());
+        boolean separating = false;
+        //an underscore before this index was followed by a removed "_$" and cannot start another one
+        int floor = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c == '(') || (c == ')') || (c == '&')) {
+                continue;
+            }
+            if (isSeparator(c)) {
+                if (!separating) {
+                    name.append('_');
+                    separating = true;
+                }
+                continue;
+            }
+            separating = false;
+            int last = name.length() - 1;
+            if ((c == '$') && (last >= floor) && (name.charAt(last) == '_')) {
+                name.setLength(last);
+                floor = last;
+                continue;
+            }
+            name.append(c);
+        }
+        return name.toString();
+    }
+
+    protected static boolean isSeparator(char c) {
+        return switch (c) {
+            case ' ', '\t', '\n', '\u000B', '\f', '\r', '-', ',', '/', ':', '?', '"', '<', '>', '|', '.' -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isMark(int codePoint) {
+        int type = Character.getType(codePoint);
+        return (type == Character.NON_SPACING_MARK) || (type == Character.ENCLOSING_MARK) || (type == Character.COMBINING_SPACING_MARK);
+    }
+
+    private static Map<String, String> memo() {
+        return Collections.synchronizedMap(new LinkedHashMap<>(MEMO_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MEMO_SIZE;
+            }
+        });
+    }
+
+    private static String memoize(Map<String, String> memo, String key, UnaryOperator<String> function) {
+        if (key == null) {
+            return null;
+        }
+        String value = memo.get(key);
+        if (value == null) {
+            value = function.apply(key);
+            memo.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the scope of a folder or sprite file, names differing only by case colliding when {@code ignoreCase} is
+     * set, as files do on some file systems.
+     */
+    public Scope scope(String key, boolean ignoreCase) {
+        return scopes.computeIfAbsent(key, k -> new Scope(k, ignoreCase));
+    }
+
+    /**
+     * Starts the scope of a folder or sprite file anew, forgetting the names claimed so far.
+     */
+    public Scope newScope(String key, boolean ignoreCase) {
+        Scope scope = new Scope(key, ignoreCase);
+        scopes.put(key, scope);
+        return scope;
+    }
+
+    /**
+     * Returns every rename, the new name prefixed by its scope mapped to the name it collided with.
+     */
+    public Map<String, String> aliases() {
+        Map<String, String> aliases = new TreeMap<>();
+        scopes.values().forEach(scope -> scope.aliases().forEach((name, collided) ->
+                aliases.put(scope.key().isEmpty() ? name : scope.key() + "/" + name, collided)));
+        return aliases;
+    }
+
+    /**
+     * Stores the renames at the root of an output, or removes the ones of a previous run.
+     */
+    public void save(Path root) {
+        Path file = root.resolve(NAMES);
+        Map<String, String> aliases = aliases();
+        try {
+            if (aliases.isEmpty()) {
+                Files.deleteIfExists(file);
+                return;
+            }
+            Files.createDirectories(root);
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                gson.toJson(aliases, writer);
+            }
+            logger.info(String.format("%d colliding name(s) renamed, see %s", aliases.size(), file));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static class Scope {
+        private final String key;
+        private final boolean ignoreCase;
+        private final Set<String> claimed = new HashSet<>();
+        private final Map<String, String> aliases = new LinkedHashMap<>();
+
+        protected Scope(String key, boolean ignoreCase) {
+            this.key = key;
+            this.ignoreCase = ignoreCase;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        /**
+         * Claims a name, returning it unchanged when still free or with the first free numbered suffix otherwise, a
+         * blank name being replaced by {@value #PLACEHOLDER} first.
+         */
+        public synchronized String claim(String name) {
+            if (name.isBlank()) {
+                name = PLACEHOLDER;
+            }
+            if (claimed.add(normalize(name))) {
+                return name;
+            }
+            String renamed;
+            int suffix = 2;
+            do {
+                renamed = name + "_" + suffix++;
+            } while (!claimed.add(normalize(renamed)));
+            aliases.put(renamed, name);
+            logger.fine(String.format("Name '%s' already taken in '%s', renamed %s", name, key, renamed));
+            return renamed;
+        }
+
+        public synchronized Map<String, String> aliases() {
+            return new LinkedHashMap<>(aliases);
+        }
+
+        private String normalize(String name) {
+            return ignoreCase ? name.toLowerCase(Locale.ROOT) : name;
+        }
+    }
+}
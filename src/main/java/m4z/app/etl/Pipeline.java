@@ -0,0 +1,170 @@
+package m4z.app.etl;
+
+import m4z.app.config.AppConfig;
+import m4z.app.etl.drawio.IconsExtractor;
+import m4z.app.etl.plantuml.IconToSpriteTransformer;
+import m4z.app.etl.svg.DefaultOptimizer;
+import m4z.app.etl.svg.Optimizers;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Chains extraction, optimization and sprite transformation in memory.
+ * <p>
+ * Each stage runs on its own thread and hands the parsed icons of a library to the next one through a bounded queue,
+ * a fast stage being blocked as soon as its successor lags {@code pipeline.capacity} libraries behind.
+ * Only the sprites are written unless the intermediate stages are listed in {@code pipeline.persist}. Icons being
+ * optimized in memory, {@code optimizer.type} must select the default optimizer.
+ */
+public class Pipeline extends Processor {
+    public static final String EXTRACTOR = "extractor";
+    public static final String OPTIMIZER = "optimizer";
+
+    private static final IconSet END = new IconSet("", List.of());
+    private static final long POLL_MILLIS = 100;
+
+    private final AtomicBoolean aborted = new AtomicBoolean();
+
+    public Pipeline(AppConfig config) {
+        super(config);
+    }
+
+    @Override
+    protected String stageName() {
+        return "pipeline";
+    }
+
+    @Override
+    public void process() {
+        if (!Optimizers.isDefault(getConfig())) {
+            throw new IllegalArgumentException("The pipeline only runs the default optimizer, not "
+                    + getConfig().app().optimizer().type());
+        }
+        AppConfig.App.Pipeline settings = getConfig().app().pipeline();
+        BlockingQueue<IconSet> extracted = new ArrayBlockingQueue<>(settings.capacity());
+        BlockingQueue<IconSet> optimized = new ArrayBlockingQueue<>(settings.capacity());
+
+        IconsExtractor extractor = new IconsExtractor(getConfig());
+        DefaultOptimizer optimizer = new DefaultOptimizer(getConfig());
+        IconToSpriteTransformer transformer = new IconToSpriteTransformer(getConfig());
+
+        Path icons = settings.persist(EXTRACTOR) ? output(getConfig().app().extractor().output(), getConfig().app().extractor().archive()) : null;
+        Path optimizedIcons = settings.persist(OPTIMIZER) ? output(getConfig().app().optimizer().output(), getConfig().app().optimizer().archive()) : null;
+        Path sprites = Paths.get(getConfig().app().transformer().output());
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> stages = new ArrayList<>();
+            stages.add(executor.submit(stage(extractor, () -> {
+                extractor.extract(library -> put(extracted, library), icons);
+                put(extracted, END);
+            })));
+            stages.add(executor.submit(stage(optimizer, () -> {
+                for (IconSet library = take(extracted); library != END; library = take(extracted)) {
+                    optimizer.optimize(library);
+                    if (settings.persist(OPTIMIZER)) {
+                        optimizer.saveIcons(library, optimizedIcons);
+                    }
+                    put(optimized, library);
+                }
+                put(optimized, END);
+            })));
+            stages.add(executor.submit(stage(transformer, () -> {
+                Set<String> folders = new HashSet<>();
+                for (IconSet library = take(optimized); library != END; library = take(optimized)) {
+                    transformer.transform(library, sprites, !folders.add(library.folder()));
+                }
+            })));
+            await(stages);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wraps a stage so that its failure unblocks the others, its running time being recorded as the duration of the
+     * processor in the metrics.
+     */
+    protected Callable<Void> stage(Processor processor, Runnable body) {
+        return () -> {
+            long start = System.nanoTime();
+            try {
+                body.run();
+                return null;
+            } catch (RuntimeException | Error e) {
+                aborted.set(true);
+                throw e;
+            } finally {
+                processor.metrics().duration(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Waits for all stages, rethrowing the failure that aborted the pipeline rather than the cancellations it caused.
+     */
+    protected void await(List<Future<?>> stages) {
+        RuntimeException failure = null;
+        for (Future<?> stage : stages) {
+            try {
+                stage.get();
+            } catch (ExecutionException e) {
+                RuntimeException cause = e.getCause() instanceof RuntimeException runtime ? runtime : new RuntimeException(e.getCause());
+                if ((failure == null) || (failure instanceof CancellationException && !(cause instanceof CancellationException))) {
+                    failure = cause;
+                }
+            } catch (InterruptedException e) {
+                aborted.set(true);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Blocks while the queue is full, giving up as soon as another stage failed.
+     */
+    protected void put(BlockingQueue<IconSet> queue, IconSet library) {
+        try {
+            while (!queue.offer(library, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkAborted();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Pipeline interrupted");
+        }
+    }
+
+    /**
+     * Blocks while the queue is empty, giving up as soon as another stage failed.
+     */
+    protected IconSet take(BlockingQueue<IconSet> queue) {
+        try {
+            IconSet library = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            while (library == null) {
+                checkAborted();
+                library = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return library;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Pipeline interrupted");
+        }
+    }
+
+    private void checkAborted() {
+        if (aborted.get()) {
+            throw new CancellationException("Pipeline aborted by a failing stage");
+        }
+    }
+}
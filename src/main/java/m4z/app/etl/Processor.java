@@ -1,9 +1,33 @@
 package m4z.app.etl;
 
 import m4z.app.config.AppConfig;
+import m4z.app.metrics.MetricsRegistry;
 
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * A processing stage, timed by {@link #run()} and recorded in the {@link MetricsRegistry} under its
+ * {@link #stageName()}, the registry being written once the stage is done when {@code metrics} is active. The
+ * {@code .zip} archives the stage reads or writes in place of directories are closed at the same time.
+ */
 public abstract class Processor {
+    public static final String ARCHIVE_EXTENSION = ".zip";
+    private static final Logger logger = Logger.getLogger(Processor.class.getName());
+
     final private AppConfig config;
+    private final List<FileSystem> archives = new ArrayList<>();
 
     public Processor(AppConfig config) {
         this.config = config;
@@ -14,4 +38,117 @@ public abstract class Processor {
     }
 
     public abstract void process();
+
+    /**
+     * Runs {@link #process()} as a stage: times it, closes the archives it opened and writes the metrics when they are
+     * active. Callers run stages through this method, {@code process()} alone leaving archives open.
+     */
+    public final void run() {
+        long start = System.nanoTime();
+        try {
+            process();
+        } finally {
+            try {
+                closeArchives();
+            } finally {
+                metrics().duration(System.nanoTime() - start);
+                if (config.app().metrics().active()) {
+                    MetricsRegistry.getInstance().write(Paths.get(config.app().metrics().path()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Name of the stage in the metrics, the configuration section of the stage.
+     */
+    protected String stageName() {
+        return getClass().getSimpleName();
+    }
+
+    protected MetricsRegistry.Stage metrics() {
+        return MetricsRegistry.getInstance().stage(stageName());
+    }
+
+    /**
+     * Resolves the input of a stage, a {@code .zip} file being read in place through the root of the archive.
+     */
+    protected Path input(String location) {
+        Path path = Paths.get(location);
+        return isArchive(path) ? openArchive(path, Map.of()) : path;
+    }
+
+    /**
+     * Resolves the output of a stage, a {@code .zip} file being written as a single archive whose entries are stored
+     * or deflated as set by {@code archive}, an existing one being updated. The entries are kept in memory until the
+     * stage is done, the archive and its central directory being then written at once.
+     */
+    protected Path output(String location, String archive) {
+        Path path = Paths.get(location);
+        if (!isArchive(path)) {
+            return path;
+        }
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return openArchive(path, Map.of("create", "true", "compressionMethod", archive.toUpperCase(Locale.ROOT)));
+    }
+
+    public static boolean isArchive(Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(ARCHIVE_EXTENSION);
+    }
+
+    /**
+     * Path of a file relative to a root with {@code /} separators, so that it can be resolved against another root
+     * held by another file system.
+     */
+    public static String relativize(Path root, Path file) {
+        return root.relativize(file).toString().replace(root.getFileSystem().getSeparator(), "/");
+    }
+
+    protected Path openArchive(Path path, Map<String, ?> env) {
+        try {
+            FileSystem archive = FileSystems.newFileSystem(path, env);
+            synchronized (archives) {
+                archives.add(archive);
+            }
+            logger.fine("Opened archive " + path.toAbsolutePath());
+            return archive.getPath("/");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes the archives opened by the stage, which writes those it changed.
+     */
+    protected void closeArchives() {
+        IOException failure = null;
+        synchronized (archives) {
+            for (FileSystem archive : archives) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            archives.clear();
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    protected ExecutorService newExecutor(AppConfig.App.Concurrency concurrency) {
+        if (concurrency.virtual()) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(concurrency.threads());
+    }
 }
@@ -1,38 +1,40 @@
 package m4z.app.etl.drawio;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
 import m4z.app.config.AppConfig;
-import m4z.app.config.ProxyManager;
+import m4z.app.etl.IconSet;
+import m4z.app.etl.IconStore;
+import m4z.app.etl.NameNormalizer;
 import m4z.app.etl.Processor;
-import org.jsoup.Connection;
+import m4z.app.http.HttpCache;
+import m4z.app.http.HttpFetcher;
+import m4z.app.metrics.MetricsRegistry;
 import org.jsoup.Jsoup;
+import org.jsoup.nodes.Attributes;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.parser.Parser;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.text.Normalizer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class IconsExtractor extends Processor {
 
+    public static final String STREAMING = "streaming";
+
     private static final Logger logger = Logger.getLogger(IconsExtractor.class.getName());
     private static final String DATA_IMAGE_PREFIX = "data:image/svg+xml;base64,";
     private static final Pattern P_SIZE = Pattern.compile("(?<size>(\\d+\\.?\\d+))(p[tx])?");
@@ -40,18 +42,195 @@ public class IconsExtractor extends Processor {
     private static final Pattern P_STYLE = Pattern.compile("([\\w-]+)\\s*:\\s*([^;]+)");
 
     private final Pattern inputPattern;
+    private final HttpFetcher fetcher;
+    private final LinkedImageResolver images = new LinkedImageResolver(this::loadLinkedImage);
+    private IconStore store;
+    private NameNormalizer names = new NameNormalizer();
 
     public IconsExtractor(AppConfig config) {
         super(config);
+        fetcher = HttpFetcher.getInstance(config);
         inputPattern = Pattern.compile(getConfig().app().extractor().input().filter().regex(), Pattern.CASE_INSENSITIVE);
     }
 
+    @Override
+    protected String stageName() {
+        return "extractor";
+    }
+
     @Override
     public void process() {
         Path source = Paths.get(getConfig().app().extractor().input().path());
-        Path target = Paths.get(getConfig().app().extractor().output());
-        Stream<MxLibrary> libraryStream = extractLibraries(source);
-        saveIcons(libraryStream, target);
+        Path target = output(getConfig().app().extractor().output(), getConfig().app().extractor().archive());
+        store = new IconStore(target, IconStore.Mode.of(getConfig().app().extractor().dedup()));
+        names = new NameNormalizer();
+        HttpCache.Stats cached = fetcher.getCacheStats();
+        LinkedImageResolver.Stats resolved = images.getStats();
+        if (getConfig().app().extractor().concurrency().active()) {
+            saveIconsConcurrently(source, target);
+        } else {
+            try (Stream<MxLibrary> libraryStream = extractLibraries(source)) {
+                saveIcons(libraryStream, target);
+            }
+        }
+        try {
+            Files.createDirectories(target);
+            store.close();
+            names.save(target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("Remote resources: " + fetcher.getStats());
+        if (fetcher.getCacheStats() != null) {
+            HttpCache.Stats stats = fetcher.getCacheStats();
+            logger.info("Remote resources cache: " + stats);
+            metrics().add(MetricsRegistry.CACHE_HITS, stats.hits() - cached.hits());
+            metrics().add(MetricsRegistry.CACHE_MISSES, stats.misses() - cached.misses());
+        }
+        logImages(resolved);
+    }
+
+    /**
+     * Reports the linked images resolved since {@code before}, counted as cache lookups of the stage.
+     */
+    protected void logImages(LinkedImageResolver.Stats before) {
+        LinkedImageResolver.Stats stats = images.getStats();
+        if (stats.hits() + stats.misses() > before.hits() + before.misses()) {
+            logger.info("Linked images: " + stats);
+            metrics().add(MetricsRegistry.CACHE_HITS, stats.hits() - before.hits());
+            metrics().add(MetricsRegistry.CACHE_MISSES, stats.misses() - before.misses());
+        }
+    }
+
+    /**
+     * Extracts and saves libraries concurrently, a failing library being reported without stopping the others.
+     * Libraries sharing a folder are still saved one after the other in document order, as the serial path does.
+     */
+    protected void saveIconsConcurrently(Path source, Path target) {
+        Map<String, CompletableFuture<Void>> folders = new HashMap<>();
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        try (Stream<Element> anchorStream = extractLibraryAnchors(source);
+             ExecutorService executor = newExecutor(getConfig().app().extractor().concurrency())) {
+            //the page is searched before its libraries are moved, unless the scanner reads it while handing them over
+            Iterable<Element> anchors = isStreaming() ? anchorStream::iterator : anchorStream.toList();
+            int index = 0;
+            for (Element anchor : anchors) {
+                int rank = index++;
+                Element detached = detach(anchor);
+                String libraryName = libraryName(detached);
+                CompletableFuture<MxLibrary> library = CompletableFuture.supplyAsync(() -> extractLibrary(detached), executor);
+                folders.compute(toPath(libraryName), (folder, previous) ->
+                        (previous == null ? library : previous.thenCombine(library, (done, next) -> next))
+                                .thenAcceptAsync(extracted -> {
+                                    if (accept(extracted)) {
+                                        saveIcons(extracted, target, rank);
+                                    }
+                                }, executor)
+                                .exceptionally(e -> {
+                                    failures.add(libraryName);
+                                    metrics().increment(MetricsRegistry.ERRORS);
+                                    logger.log(Level.SEVERE, String.format("Icons palette '%s' failed", libraryName), e);
+                                    return null;
+                                }));
+            }
+            CompletableFuture.allOf(folders.values().toArray(CompletableFuture[]::new)).join();
+        }
+        if (!failures.isEmpty()) {
+            logger.severe(String.format("%d icons palette(s) failed: %s", failures.size(), failures));
+        }
+    }
+
+    /**
+     * Moves a library title and its sidebar out of the page, so that concurrent extractions share no node.
+     */
+    protected Element detach(Element libraryAnchor) {
+        Element sidebar = libraryAnchor.nextElementSibling();
+        Element holder = new Element("div");
+        holder.appendChild(libraryAnchor);
+        if (sidebar != null) {
+            holder.appendChild(sidebar);
+        }
+        return libraryAnchor;
+    }
+
+    /**
+     * Extracts the accepted libraries and hands them over, already parsed, to the given consumer instead of writing them.
+     */
+    public void extract(Consumer<IconSet> consumer) {
+        extract(consumer, null);
+    }
+
+    /**
+     * Extracts the accepted libraries and hands them over, already parsed, to the given consumer, writing them first
+     * into {@code target} when set, deduplicated and named as {@link #process()} does.
+     */
+    public void extract(Consumer<IconSet> consumer, Path target) {
+        Path source = Paths.get(getConfig().app().extractor().input().path());
+        names = new NameNormalizer();
+        store = (target != null) ? new IconStore(target, IconStore.Mode.of(getConfig().app().extractor().dedup())) : null;
+        LinkedImageResolver.Stats resolved = images.getStats();
+        try (Stream<MxLibrary> libraries = extractLibraries(source)) {
+            libraries.filter(this::accept)
+                    .map(this::toIconSet)
+                    .forEach(library -> {
+                        if (target != null) {
+                            saveIcons(library, target);
+                        }
+                        consumer.accept(library);
+                    });
+        }
+        if (target != null) {
+            try {
+                Files.createDirectories(target);
+                store.close();
+                names.save(target);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        logImages(resolved);
+    }
+
+    protected void saveIcons(IconSet icons, Path target) {
+        Path folder = target.resolve(icons.folder());
+        try {
+            if (!icons.icons().isEmpty()) {
+                Files.createDirectories(folder);
+            }
+            for (IconSet.Icon icon : icons.icons()) {
+                write(folder.resolve(icon.name() + ".svg"), icon.svg());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected IconSet toIconSet(MxLibrary library) {
+        String folder = toPath(library.getName());
+        NameNormalizer.Scope scope = names.scope(folder, true);
+        metrics().increment(MetricsRegistry.LIBRARIES);
+        List<IconSet.Icon> parsed;
+        //the page and the linked images are rewritten as icons are read, hence by this thread only, one at a time
+        try (Stream<MxIcon> icons = library.icons()) {
+            Stream<MxIcon> svgIcons = icons.filter(MxIcon::isSvgImage);
+            if (getConfig().app().extractor().concurrency().active()) {
+                //each payload is then parsed into its own document in parallel, names being claimed afterwards in order
+                svgIcons = svgIcons.toList().parallelStream();
+            }
+            parsed = svgIcons
+                    .map(icon -> {
+                        long start = System.nanoTime();
+                        IconSet.Icon title = new IconSet.Icon(String.valueOf(icon.getTitle()), toSvgElement(icon));
+                        metrics().increment(MetricsRegistry.ICONS);
+                        metrics().latency(start);
+                        return title;
+                    })
+                    .toList();
+        }
+        List<IconSet.Icon> icons = parsed.stream()
+                .map(icon -> new IconSet.Icon(scope.claim(icon.name()), icon.svg()))
+                .toList();
+        return new IconSet(folder, icons);
     }
 
     protected void saveIcons(Stream<MxLibrary> libraries, Path target) {
@@ -59,26 +238,44 @@ public class IconsExtractor extends Processor {
     }
 
     protected Stream<MxLibrary> extractLibraries(Path source) {
+        return extractLibraryAnchors(source).map(this::extractLibrary);
+    }
+
+    /**
+     * Returns the library titles of the page, each one followed by its sidebar.
+     * With {@code extractor.type: streaming} the page is read as the stream is consumed instead of being parsed at once,
+     * the stream then having to be closed.
+     */
+    protected Stream<Element> extractLibraryAnchors(Path source) {
         try {
+            if (isStreaming()) {
+                return SidebarScanner.stream(source);
+            }
             Document doc = Jsoup.parse(source);
             Element container = doc.getElementsByClass("geSidebarContainer").first();
-            return container.selectStream("a[title].geTitle")
-                    .map(this::extractLibrary);
+            return container.selectStream("a[title].geTitle");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    protected MxLibrary extractLibrary(Element libraryAnchor) {
+    protected boolean isStreaming() {
+        return STREAMING.equalsIgnoreCase(getConfig().app().extractor().type());
+    }
+
+    protected String libraryName(Element libraryAnchor) {
         Element span = libraryAnchor.selectFirst("span");
-        String libraryName = span.text();
+        return span.text();
+    }
+
+    protected MxLibrary extractLibrary(Element libraryAnchor) {
         MxLibrary library = new MxLibrary();
-        library.setName(libraryName);
+        library.setName(libraryName(libraryAnchor));
 
         if (isRemoteLibrary(libraryAnchor)) {
-            library.setIcons(extractRemoteIcons(libraryAnchor));
+            library.setIconSource(() -> extractRemoteIcons(libraryAnchor));
         } else {
-            library.setIcons(extractIcons(libraryAnchor));
+            library.setIconSource(() -> extractIcons(libraryAnchor));
         }
 
         return library;
@@ -90,24 +287,35 @@ public class IconsExtractor extends Processor {
             logger.fine(String.format("Icons palette '%s' %s", library.getName(), (accepted ? "accepted" : "rejected")));
             return accepted;
         }
-        return !library.getIcons().isEmpty();
+        return !library.isEmpty();
     }
 
+    /**
+     * Writes the svg icons of a library, an icon whose name is already taken in its folder being renamed rather than
+     * overwriting the other one.
+     */
     protected void saveIcons(MxLibrary library, Path target) {
-        Path folder = Paths.get(target.toFile().getAbsolutePath(), toPath(library.getName()));
-        try {
-            for (MxIcon icon : library.getIcons()) {
+        saveIcons(library, target, -1);
+    }
+
+    /**
+     * @param rank position of the library in the page when saved concurrently, its icons being then deduplicated in
+     *             document order once all are written, negative when saved in order
+     */
+    protected void saveIcons(MxLibrary library, Path target, int rank) {
+        Path folder = target.resolve(toPath(library.getName()));
+        NameNormalizer.Scope scope = names.scope(toPath(library.getName()), true);
+        metrics().increment(MetricsRegistry.LIBRARIES);
+        try (Stream<MxIcon> icons = library.icons()) {
+            int index = 0;
+            for (MxIcon icon : (Iterable<MxIcon>) icons::iterator) {
                 if (icon.isSvgImage()) {
+                    long start = System.nanoTime();
                     Files.createDirectories(folder);
-                    Path file = Paths.get(folder.toAbsolutePath().toString(), icon.getTitle() + ".svg");
-                    Document doc = Jsoup.parse(icon.getSvgPayload(), Parser.xmlParser());
-                    Element svg = doc.selectFirst("svg");
-                    Files.writeString(file,
-                            //svg.toString().replaceAll(">\\s+<", "><").replace("viewbox", "viewBox"),
-                            svg.toString().replace("viewbox", "viewBox"),
-                            StandardOpenOption.WRITE,
-                            StandardOpenOption.CREATE,
-                            StandardOpenOption.TRUNCATE_EXISTING);
+                    Path file = folder.resolve(scope.claim(String.valueOf(icon.getTitle())) + ".svg");
+                    write(file, toSvgElement(icon), (rank < 0) ? -1 : ((long) rank << 32) | index++);
+                    metrics().increment(MetricsRegistry.ICONS);
+                    metrics().latency(start);
                 }
             }
         } catch (IOException e) {
@@ -115,49 +323,86 @@ public class IconsExtractor extends Processor {
         }
     }
 
+    protected Element toSvgElement(MxIcon icon) {
+        metrics().add(MetricsRegistry.BYTES_IN, icon.getSvgPayloadSize());
+        Document doc = parse(icon.openSvgPayload(), "");
+        Element svg = doc.selectFirst("svg");
+        if (svg != null) {
+            //payloads captured from the html sidebar carry lower-cased attribute names
+            svg.select("[viewbox]").forEach(element -> {
+                Attributes attributes = element.attributes();
+                if (attributes.hasKey("viewbox")) {
+                    String viewBox = attributes.get("viewbox");
+                    attributes.remove("viewbox");
+                    attributes.put("viewBox", viewBox);
+                }
+            });
+        }
+        return svg;
+    }
+
+    protected void write(Path file, Element svg) throws IOException {
+        write(file, svg, -1);
+    }
+
+    /**
+     * @param rank position of the icon in the page when written concurrently, negative when written in order
+     */
+    protected void write(Path file, Element svg, long rank) throws IOException {
+        //svg.toString().replaceAll(">\\s+<", "><").replace("viewbox", "viewBox"),
+        String content = svg.toString().replace("viewbox", "viewBox");
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        metrics().add(MetricsRegistry.BYTES_OUT, bytes.length);
+        if ((store != null) && (rank >= 0)) {
+            store.write(file, bytes, rank);
+        } else if (store != null) {
+            store.write(file, bytes);
+        } else {
+            Files.write(file, bytes,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
     protected boolean isRemoteLibrary(Element libraryAnchor) {
         String title = libraryAnchor.attr("title");
         String[] values = title.split("\r\n");
         return values.length > 1;
     }
 
-    protected Set<MxIcon> extractRemoteIcons(Element libraryAnchor) {
+    /**
+     * Opens a remote library, its icons being downloaded and decoded as the returned stream is consumed.
+     */
+    protected Stream<MxIcon> extractRemoteIcons(Element libraryAnchor) {
         String title = libraryAnchor.attr("title");
         String[] values = title.split("\r\n");
         String url = java.net.URLDecoder.decode(values[1].substring(1), StandardCharsets.UTF_8);
-        HttpClient httpClient = HttpClient.newBuilder()
-                .proxy(ProxyManager.proxySelector())
-                .build();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .build();
 
         try {
-            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
-            if (response.statusCode() == 200) {
-                String responseBody = new String(response.body());
-                Document doc = Jsoup.parse(responseBody, Parser.xmlParser());
-                Element element = doc.selectFirst("mxlibrary");
-
-                Type type = new TypeToken<Set<MxIcon>>() {
-                }.getType();
-                Gson gson = new GsonBuilder().create();
-                Set<MxIcon> icons = gson.fromJson(element.text(), type);
-                return icons;
-            }
-        } catch (IOException | InterruptedException e) {
+            return MxLibraryReader.stream(fetcher.open(url));
+        } catch (HttpFetcher.StatusException e) {
+            logger.warning(e.getMessage());
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        return null;
+        return Stream.empty();
     }
 
-    protected Set<MxIcon> extractIcons(Element libraryAnchor) {
+    /**
+     * Returns the icons of a sidebar, each one being read as the stream is consumed.
+     */
+    protected Stream<MxIcon> extractIcons(Element libraryAnchor) {
         Element div = libraryAnchor.nextElementSibling();
-        return div.selectStream("div.geSidebar>a.geItem")
+        if (div == null) {
+            return Stream.empty();
+        }
+        //anchors are selected up front, as resolving linked images rewrites the sidebar
+        //document order is kept, so that colliding names are resolved the same way on every run
+        return div.select("div.geSidebar>a.geItem").stream()
                 .map(this::extractIcon)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
+                .filter(Objects::nonNull);
     }
 
     protected MxIcon extractIcon(Element iconAnchor) {
@@ -193,13 +438,28 @@ public class IconsExtractor extends Processor {
     }
 
     protected Element loadImage(Element svg) {
+        return loadImage(svg, new HashSet<>());
+    }
+
+    /**
+     * Replaces an icon by the image it links to, recursively, an image already being resolved ending the chain.
+     *
+     * @param resolving keys of the images linked so far by the icon
+     */
+    protected Element loadImage(Element svg, Set<String> resolving) {
         Element image = svg.selectFirst("g>image[xlink:href]");
         if (image != null) {
             logger.fine("Resolve referenced image");
-            Element linkedSvg = loadLinkedImage(image.attr("xlink:href"));
+            String href = image.attr("xlink:href");
+            String key = LinkedImageResolver.key(href);
+            if (!resolving.add(key)) {
+                logger.warning(String.format("Cyclic image reference %s, left unresolved", key));
+                return svg;
+            }
+            Element linkedSvg = images.resolve(key, href);
             if (linkedSvg != null) {
                 svg.replaceWith(linkedSvg);
-                return loadImage(linkedSvg);
+                return loadImage(linkedSvg, resolving);
             }
         }
         return svg;
@@ -208,15 +468,12 @@ public class IconsExtractor extends Processor {
     protected Element loadLinkedImage(String href) {
         if (href.startsWith(DATA_IMAGE_PREFIX)) {
             logger.fine(String.format("Nested Base64 image resolution: %s", href));
-            String image = new String(Base64.getDecoder().decode(href.substring(DATA_IMAGE_PREFIX.length())));
-            Document doc = Jsoup.parse(image, Parser.xmlParser());
+            Document doc = parse(MxIcon.decodeBase64(href, DATA_IMAGE_PREFIX.length()), "");
             return doc.selectFirst("svg");
         } else if (href.endsWith(".svg")) {
             logger.fine(String.format("Resolve external reference image: %s", href));
             try {
-                Connection connection = Jsoup.connect(href);
-                connection.proxy(ProxyManager.proxy());
-                Document doc = connection.get();
+                Document doc = parse(fetcher.open(href), href);
                 return doc.selectFirst("svg");
             } catch (IOException e) {
                 logger.severe(String.format("Ressource Not Found: %s", href));
@@ -226,30 +483,31 @@ public class IconsExtractor extends Processor {
         return null;
     }
 
+    /**
+     * Parses XML read as UTF-8 bytes, whatever the platform charset.
+     */
+    protected Document parse(InputStream xml, String baseUri) {
+        try (InputStream in = xml) {
+            return Jsoup.parse(in, StandardCharsets.UTF_8.name(), baseUri, Parser.xmlParser());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     protected String toPath(String libraryName) {
-        String path = Arrays.stream(libraryName.trim().split("/"))
-                .map(String::trim)
-                .map(this::removeAccents)
-                .collect(Collectors.joining("/"));
+        String path = NameNormalizer.toPath(libraryName);
         logger.fine(String.format("Icon palette description to Path: %s -> %s", libraryName, path));
         return path;
     }
 
     protected String toIconName(String description) {
-        String iconName = description.trim()
-                .replaceAll("[)(&]", "")
-                .replaceAll("[\\s-,/\\:?\"<>|.]+", "_")
-                .replace("_$", "");
-        iconName = removeAccents(iconName);
+        String iconName = NameNormalizer.toIconName(description);
         logger.fine(String.format("Icon description to icon name :%s -> %s", description, iconName));
         return iconName;
     }
 
     protected String removeAccents(String text) {
-        if (text == null) return null;
-
-        return Normalizer.normalize(text, Normalizer.Form.NFD)
-                .replaceAll("\\p{M}", "");
+        return NameNormalizer.removeAccents(text);
     }
 
     protected Map<String, String> parseStyle(Element element) {
@@ -0,0 +1,88 @@
+package m4z.app.etl.drawio;
+
+import m4z.app.tools.Hashes;
+import org.jsoup.nodes.Element;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Memoizes the images linked by icons, keyed by the digest of their href, so that artwork shared by many icons is
+ * fetched or decoded and parsed once.
+ * <p>
+ * The parsed images, and the hrefs that could not be resolved, are kept in a least recently used map of at most
+ * {@code maxEntries} entries. Each lookup returns a copy, the caller being free to move it into its icon.
+ */
+public class LinkedImageResolver {
+    public static final int MAX_ENTRIES = 256;
+    private static final Logger logger = Logger.getLogger(LinkedImageResolver.class.getName());
+
+    private final Function<String, Element> loader;
+    private final Map<String, Element> images;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public LinkedImageResolver(Function<String, Element> loader) {
+        this(loader, MAX_ENTRIES);
+    }
+
+    public LinkedImageResolver(Function<String, Element> loader, int maxEntries) {
+        this.loader = loader;
+        this.images = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Element> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static String key(String href) {
+        return Hashes.sha256(href);
+    }
+
+    public Element resolve(String href) {
+        return resolve(key(href), href);
+    }
+
+    /**
+     * Returns a copy of the image linked by {@code href}, loading it unless already known, or {@code null} when it
+     * cannot be resolved.
+     *
+     * @param key digest of the href, as given by {@link #key(String)}
+     */
+    public Element resolve(String key, String href) {
+        synchronized (images) {
+            if (images.containsKey(key)) {
+                hits.increment();
+                Element image = images.get(key);
+                return (image == null) ? null : image.clone();
+            }
+        }
+        misses.increment();
+        //loaded outside the lock, concurrent extractions missing the same image both load it
+        Element image = loader.apply(href);
+        logger.finer(String.format("Linked image %s %s", key, (image == null) ? "unresolved" : "cached"));
+        //copied under the lock, as cached images are cloned by other threads
+        synchronized (images) {
+            images.put(key, image);
+            return (image == null) ? null : image.clone();
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (images) {
+            return new Stats(hits.sum(), misses.sum(), images.size());
+        }
+    }
+
+    public record Stats(long hits, long misses, int size) {
+
+        @Override
+        public String toString() {
+            return String.format("%d hit(s), %d miss(es), %d image(s) cached", hits, misses, size);
+        }
+    }
+}
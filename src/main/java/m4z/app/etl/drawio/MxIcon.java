@@ -1,46 +1,101 @@
 package m4z.app.etl.drawio;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.logging.Logger;
 
+/**
+ * Icon of a draw.io library, kept compact so that whole catalogs can stay in memory.
+ * <p>
+ * Dimensions are rounded to integers and the icon holds a single payload as UTF-8 bytes: its SVG markup, an SVG data
+ * URL, Base64 or percent-encoded, being decoded once bound, or else its graph model or other data URL, its text being
+ * only materialized when asked for. Icons are bound from and to the library JSON by {@link Adapter}.
+ */
+@JsonAdapter(MxIcon.Adapter.class)
 public class MxIcon {
-    String svg;
-    String xml;
-    String data;
-    String aspect;
-    String title;
-    @SerializedName("w")
-    String width;
-    @SerializedName("h")
-    String height;
+    public static final int UNKNOWN = -1;
+    private static final Logger logger = Logger.getLogger(MxIcon.class.getName());
+    private static final String SVG_DATA_PREFIX = "data:image/svg+xml;base64,";
+
+    protected enum Kind {
+        SVG, XML, DATA
+    }
+
+    private String title;
+    private String aspect;
+    private int width = UNKNOWN;
+    private int height = UNKNOWN;
+    private Kind kind;
+    private byte[] payload;
+    /**
+     * Whether the SVG image was given as a data URL, and is written back as one.
+     */
+    private boolean dataUrl;
 
     public MxIcon() {
 
     }
 
+    /**
+     * Returns the SVG markup, or {@code null} when the icon is not an SVG image.
+     */
     public String getSvg() {
-        return svg;
+        return (kind == Kind.SVG) ? text() : null;
     }
 
     public void setSvg(String svg) {
-        this.svg = svg;
+        setPayload(Kind.SVG, svg.getBytes(StandardCharsets.UTF_8));
+        dataUrl = false;
     }
 
     public String getXml() {
-        return xml;
+        return (kind == Kind.XML) ? text() : null;
     }
 
+    /**
+     * Sets the graph model of the icon, unless it already holds an image.
+     */
     public void setXml(String xml) {
-        this.xml = xml;
+        if ((kind == null) || (kind == Kind.XML)) {
+            setPayload(Kind.XML, xml.getBytes(StandardCharsets.UTF_8));
+        }
     }
 
+    /**
+     * Returns the image as a data URL, an SVG image being encoded anew.
+     */
     public String getData() {
-        return data;
+        return switch (kind) {
+            case SVG -> SVG_DATA_PREFIX + Base64.getEncoder().encodeToString(payload);
+            case DATA -> text();
+            case null, default -> null;
+        };
     }
 
+    /**
+     * Sets the image from a data URL, an SVG one being decoded from Base64 or from its percent-encoded text.
+     */
     public void setData(String data) {
-        this.data = data;
+        int comma = data.indexOf(',');
+        if (data.startsWith("data:image/svg") && (comma > 0)) {
+            setPayload(Kind.SVG, data.substring(0, comma).endsWith(";base64")
+                    ? Base64.getDecoder().decode(data.substring(comma + 1))
+                    : decodePercent(data, comma + 1));
+            dataUrl = true;
+        } else {
+            setPayload(Kind.DATA, data.getBytes(StandardCharsets.UTF_8));
+        }
     }
 
     public String getAspect() {
@@ -48,7 +103,8 @@ public class MxIcon {
     }
 
     public void setAspect(String aspect) {
-        this.aspect = aspect;
+        //a handful of values shared by every icon
+        this.aspect = (aspect == null) ? null : aspect.intern();
     }
 
     public String getTitle() {
@@ -59,46 +115,189 @@ public class MxIcon {
         this.title = title;
     }
 
-    public String getWidth() {
+    public int getWidth() {
         return width;
     }
 
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
     public void setWidth(String width) {
-        this.width = String.valueOf(Math.round(Float.parseFloat(width)));
+        this.width = toDimension(width);
     }
 
-    public String getHeight() {
+    public int getHeight() {
         return height;
     }
 
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
     public void setHeight(String height) {
-        this.height = String.valueOf(Math.round(Float.parseFloat(height)));
+        this.height = toDimension(height);
     }
 
     public boolean isGraphModel() {
-        return xml != null;
+        return kind == Kind.XML;
     }
 
     public boolean isImage() {
-        return (data != null) || (svg != null);
+        return (kind == Kind.SVG) || (kind == Kind.DATA);
     }
 
     public boolean isSvgImage() {
-        if (isImage()) {
-            return (svg != null) || data.startsWith("data:image/svg");
-        }
-        return false;
+        return kind == Kind.SVG;
     }
 
     public String getSvgPayload() {
-        if (isSvgImage()) {
-            if (svg != null) {
-                return svg;
+        return isSvgImage() ? text() : null;
+    }
+
+    /**
+     * Streams the UTF-8 bytes of the SVG payload.
+     */
+    public InputStream openSvgPayload() {
+        return isSvgImage() ? new ByteArrayInputStream(payload) : null;
+    }
+
+    /**
+     * Size in bytes of the SVG payload.
+     */
+    public long getSvgPayloadSize() {
+        return isSvgImage() ? payload.length : 0;
+    }
+
+    /**
+     * Decodes the Base64 text starting at {@code start} while it is read.
+     */
+    protected static InputStream decodeBase64(String text, int start) {
+        return Base64.getDecoder().wrap(new InputStream() {
+            private int index = start;
+
+            @Override
+            public int read() {
+                return (index < text.length()) ? (text.charAt(index++) & 0xFF) : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (length == 0) {
+                    return 0;
+                }
+                if (index >= text.length()) {
+                    return -1;
+                }
+                int count = Math.min(length, text.length() - index);
+                for (int i = 0; i < count; i++) {
+                    buffer[offset + i] = (byte) text.charAt(index++);
+                }
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Decodes the percent-encoded text starting at {@code start}, other characters being taken as UTF-8 and a plus
+     * sign staying one, as in data URLs.
+     */
+    protected static byte[] decodePercent(String text, int start) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() - start);
+        int plain = start;
+        for (int i = start; i < text.length() - 2; i++) {
+            if ((text.charAt(i) == '%')
+                    && HexFormat.isHexDigit(text.charAt(i + 1)) && HexFormat.isHexDigit(text.charAt(i + 2))) {
+                bytes.writeBytes(text.substring(plain, i).getBytes(StandardCharsets.UTF_8));
+                bytes.write(HexFormat.fromHexDigits(text, i + 1, i + 3));
+                i += 2;
+                plain = i + 1;
             }
+        }
+        bytes.writeBytes(text.substring(plain).getBytes(StandardCharsets.UTF_8));
+        return bytes.toByteArray();
+    }
 
-            return new String(Base64.getDecoder().decode(data.split(",")[1]));
+    protected static int toDimension(String value) {
+        if ((value == null) || value.isBlank()) {
+            return UNKNOWN;
         }
+        return Math.round(Float.parseFloat(value.trim()));
+    }
+
+    private void setPayload(Kind kind, byte[] payload) {
+        this.kind = kind;
+        this.payload = payload;
+    }
 
-        return null;
+    private String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Binds icons from and to the library JSON, its {@code w} and {@code h} given either as numbers or as strings, an
+     * SVG image being written back under the field it was read from.
+     */
+    public static class Adapter extends TypeAdapter<MxIcon> {
+
+        @Override
+        public MxIcon read(JsonReader in) throws IOException {
+            MxIcon icon = new MxIcon();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "title" -> icon.setTitle(in.nextString());
+                    case "aspect" -> icon.setAspect(in.nextString());
+                    case "w" -> icon.width = dimension(in);
+                    case "h" -> icon.height = dimension(in);
+                    case "svg" -> icon.setSvg(in.nextString());
+                    case "data" -> icon.setData(in.nextString());
+                    case "xml" -> icon.setXml(in.nextString());
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return icon;
+        }
+
+        @Override
+        public void write(JsonWriter out, MxIcon icon) throws IOException {
+            out.beginObject();
+            if (icon.kind == Kind.XML) {
+                out.name("xml").value(icon.getXml());
+            } else if ((icon.kind == Kind.SVG) && !icon.dataUrl) {
+                out.name("svg").value(icon.getSvg());
+            } else if (icon.kind != null) {
+                out.name("data").value(icon.getData());
+            }
+            if (icon.width != UNKNOWN) {
+                out.name("w").value(icon.width);
+            }
+            if (icon.height != UNKNOWN) {
+                out.name("h").value(icon.height);
+            }
+            if (icon.aspect != null) {
+                out.name("aspect").value(icon.aspect);
+            }
+            if (icon.title != null) {
+                out.name("title").value(icon.title);
+            }
+            out.endObject();
+        }
+
+        private static int dimension(JsonReader in) throws IOException {
+            String value = in.nextString();
+            try {
+                return toDimension(value);
+            } catch (NumberFormatException e) {
+                logger.fine("Unreadable icon dimension: " + value);
+                return UNKNOWN;
+            }
+        }
     }
 }
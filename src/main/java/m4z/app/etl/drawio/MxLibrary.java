@@ -1,13 +1,18 @@
 package m4z.app.etl.drawio;
 
-import java.util.Set;
+import java.util.Collection;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
+/**
+ * Icons palette, its icons being read from their source only as they are consumed.
+ */
 public class MxLibrary {
     private static final Logger logger = Logger.getLogger(MxLibrary.class.getName());
 
     String name;
-    Set<MxIcon> icons;
+    private Supplier<Stream<MxIcon>> source = Stream::empty;
 
     public MxLibrary() {
     }
@@ -20,13 +25,34 @@ public class MxLibrary {
         this.name = name;
     }
 
-    public Set<MxIcon> getIcons() {
+    /**
+     * Returns the icons in palette order, read anew from the source on each call. The stream is to be closed, the
+     * source possibly holding a payload being decoded. It is read by one thread, sidebar icons being built out of the
+     * page they are read from.
+     */
+    public Stream<MxIcon> icons() {
+        Stream<MxIcon> icons = source.get();
+        logger.finer(String.format("Icons of '%s' opened", name));
         return icons;
     }
 
-    public void setIcons(Set<MxIcon> icons) {
-        this.icons = icons;
+    /**
+     * Returns whether the palette has no icon, reading its source up to the first one.
+     */
+    public boolean isEmpty() {
+        try (Stream<MxIcon> icons = icons()) {
+            return icons.findAny().isEmpty();
+        }
     }
 
+    public void setIcons(Collection<MxIcon> icons) {
+        this.source = icons::stream;
+    }
 
+    /**
+     * Sets a lazy source of icons, called each time the icons are read.
+     */
+    public void setIconSource(Supplier<Stream<MxIcon>> source) {
+        this.source = source;
+    }
 }
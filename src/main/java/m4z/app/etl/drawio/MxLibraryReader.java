@@ -0,0 +1,174 @@
+package m4z.app.etl.drawio;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Decodes the icons of a remote {@code <mxlibrary>} payload one at a time.
+ * <p>
+ * The JSON array held by the element is read straight from the text events of the XML stream, so that neither the
+ * text of the element nor the whole set of icons is ever built, only the icon being decoded.
+ */
+public class MxLibraryReader implements Iterator<MxIcon>, Closeable {
+    private static final Logger logger = Logger.getLogger(MxLibraryReader.class.getName());
+    private static final String LIBRARY = "mxlibrary";
+    private static final XMLInputFactory factory = newFactory();
+    private static final Gson gson = new Gson();
+
+    private final InputStream in;
+    private final XMLStreamReader xml;
+    private final JsonReader json;
+    private boolean started;
+    private int read;
+
+    public MxLibraryReader(InputStream in) throws IOException {
+        this.in = in;
+        try {
+            xml = factory.createXMLStreamReader(in);
+            json = seekLibrary() ? new JsonReader(new LibraryText()) : null;
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the icons of the library in document order, the payload being read as the stream is consumed, and closed
+     * with it.
+     */
+    public static Stream<MxIcon> stream(InputStream in) throws IOException {
+        MxLibraryReader reader;
+        try {
+            reader = new MxLibraryReader(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(reader::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (json == null) {
+            return false;
+        }
+        try {
+            if (!started) {
+                started = true;
+                if (json.peek() != JsonToken.BEGIN_ARRAY) {
+                    logger.warning("Icons palette without icon array: " + json.peek());
+                    return false;
+                }
+                json.beginArray();
+            }
+            return json.hasNext();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public MxIcon next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        read++;
+        return gson.fromJson(json, MxIcon.class);
+    }
+
+    @Override
+    public void close() {
+        logger.fine(String.format("%d icon(s) read", read));
+        try {
+            xml.close();
+            in.close();
+        } catch (XMLStreamException | IOException e) {
+            logger.fine("Unable to close icons palette: " + e);
+        }
+    }
+
+    /**
+     * Moves to the start of the library element, returning whether there is one.
+     */
+    protected boolean seekLibrary() throws XMLStreamException {
+        while (xml.hasNext()) {
+            if ((xml.next() == XMLStreamConstants.START_ELEMENT) && LIBRARY.equalsIgnoreCase(xml.getLocalName())) {
+                return true;
+            }
+        }
+        logger.warning("No " + LIBRARY + " element found");
+        return false;
+    }
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /**
+     * Text of the library element, copied out of each text event as the JSON reader asks for it.
+     */
+    protected class LibraryText extends Reader {
+        private int depth;
+        private boolean text;
+        private int offset;
+        private boolean ended;
+
+        @Override
+        public int read(char[] buffer, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (!ended) {
+                    if (text) {
+                        int count = xml.getTextCharacters(offset, buffer, off, len);
+                        if (count > 0) {
+                            offset += count;
+                            return count;
+                        }
+                        text = false;
+                    }
+                    switch (xml.next()) {
+                        case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE -> {
+                            text = true;
+                            offset = 0;
+                        }
+                        case XMLStreamConstants.START_ELEMENT -> depth++;
+                        case XMLStreamConstants.END_ELEMENT -> ended = (depth-- == 0);
+                        case XMLStreamConstants.END_DOCUMENT -> ended = true;
+                        default -> {
+                        }
+                    }
+                }
+                return -1;
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package m4z.app.etl.drawio;
+
+import org.jsoup.helper.DataUtil;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads an offline draw.io page incrementally, handing over each library title as soon as its sidebar is parsed.
+ * <p>
+ * The title and its sidebar are moved out of the page when handed over, as {@link IconsExtractor#detach(Element)} does,
+ * and any other element is dropped once parsed, so that the page never holds much more than the palette being read.
+ */
+public class SidebarScanner implements Iterator<Element>, Closeable {
+    private static final Logger logger = Logger.getLogger(SidebarScanner.class.getName());
+    private static final Evaluator LIBRARY_ANCHOR = QueryParser.parse("a[title].geTitle");
+    private static final String CONTAINER = "geSidebarContainer";
+
+    private final StreamParser parser;
+    private final Iterator<Element> elements;
+    private Element container;
+    /**
+     * Library title whose sidebar is still being parsed.
+     */
+    private Element pending;
+    private Element next;
+    private int released;
+    private int dropped;
+
+    public SidebarScanner(Path source) throws IOException {
+        //the charset is detected from the byte order mark or the meta tags, as Jsoup.parse(Path) does
+        parser = DataUtil.streamParser(source, null, source.toAbsolutePath().toString(), Parser.htmlParser());
+        elements = parser.iterator();
+    }
+
+    /**
+     * Returns the library titles of the page in document order, the page being read as the stream is consumed.
+     */
+    public static Stream<Element> stream(Path source) throws IOException {
+        SidebarScanner scanner = new SidebarScanner(source);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scanner, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(scanner::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((next == null) && elements.hasNext()) {
+            next = scan(elements.next());
+        }
+        if ((next == null) && (pending != null)) {
+            next = release(null);
+        }
+        return next != null;
+    }
+
+    @Override
+    public Element next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Element anchor = next;
+        next = null;
+        return anchor;
+    }
+
+    @Override
+    public void close() {
+        logger.fine(String.format("%d icons palette(s) read, %d element(s) dropped", released, dropped));
+        parser.close();
+    }
+
+    /**
+     * Handles an element whose end was just parsed, returning the library title it completes, if any.
+     */
+    protected Element scan(Element element) {
+        if (pending != null) {
+            if (element.parent() == pending.parent()) {
+                //the element right after the title is its sidebar, unless it is the next title
+                if (isLibraryAnchor(element)) {
+                    Element anchor = release(null);
+                    pending = element;
+                    return anchor;
+                }
+                return release(element);
+            }
+            if (element == pending.parent()) {
+                Element anchor = release(null);
+                drop(element);
+                return anchor;
+            }
+        }
+        if (isLibraryAnchor(element)) {
+            pending = element;
+        } else if (!isPartOfLibrary(element)) {
+            drop(element);
+        }
+        return null;
+    }
+
+    protected Element release(Element sidebar) {
+        Element anchor = pending;
+        Element holder = new Element("div");
+        holder.appendChild(anchor);
+        if (sidebar != null) {
+            holder.appendChild(sidebar);
+        }
+        pending = null;
+        released++;
+        return anchor;
+    }
+
+    protected boolean isLibraryAnchor(Element element) {
+        if (!element.is(LIBRARY_ANCHOR)) {
+            return false;
+        }
+        Element closest = element.closest("." + CONTAINER);
+        if ((container == null) && (closest != null)) {
+            container = closest;
+        }
+        //as the document path does, only the first container is searched
+        return (closest != null) && (closest == container);
+    }
+
+    /**
+     * Tells whether the element belongs to a library title or to the sidebar being parsed.
+     */
+    protected boolean isPartOfLibrary(Element element) {
+        for (Element ancestor = element.parent(); ancestor != null; ancestor = ancestor.parent()) {
+            //an element still open next to the pending title can only be its sidebar
+            if (ancestor.is(LIBRARY_ANCHOR) || ((pending != null) && (ancestor.parent() == pending.parent()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(Element element) {
+        if (element.parent() != null) {
+            element.remove();
+            dropped++;
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package m4z.app.etl.plantuml;
 
 import m4z.app.config.AppConfig;
+import m4z.app.etl.IconSet;
+import m4z.app.etl.IconStore;
+import m4z.app.etl.NameNormalizer;
 import m4z.app.etl.Processor;
+import m4z.app.etl.svg.SvgTreeCompactor;
+import m4z.app.metrics.MetricsRegistry;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -10,12 +15,16 @@ import org.jsoup.parser.Parser;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Set;
+import java.util.*;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -26,79 +35,427 @@ public class IconToSpriteTransformer extends Processor {
             , "script", "a", "animate", "animateTransform", "animateMotion"
             , "metadata", "title", "desc", "marker"
             , "symbol", "use", "foreignObject");
+    public static final String BUNDLE = "bundle";
+    public static final String ICON = "icon";
+    protected static final String SPRITES_SUFFIX = "_sprites";
+
+    private NameNormalizer names = new NameNormalizer();
+    /**
+     * Icon file of each sprite built from in-memory icon sets, by sprite file, ordering the sprites of merged libraries.
+     */
+    private final Map<String, Map<String, String>> iconFiles = new HashMap<>();
 
     public IconToSpriteTransformer(AppConfig appConfig) {
         super(appConfig);
     }
 
+    @Override
+    protected String stageName() {
+        return "transformer";
+    }
+
     @Override
     public void process() {
-        Path icons = Paths.get(getConfig().app().transformer().input().path());
+        Path icons = input(getConfig().app().transformer().input().path());
         Path sprites = Paths.get(getConfig().app().transformer().output());
+        names = new NameNormalizer();
         transform(icons, sprites);
+        names.save(sprites);
     }
 
     public void transform(Path icons, Path sprites) {
+        Map<Path, Map<String, Path>> aliases = loadAliases(icons);
+        Map<Path, String> aliasedContents = new HashMap<>();
         try (Stream<Path> pathStream = Files.walk(icons)) {
-            pathStream.filter(Files::isDirectory).forEach(directory -> transform(directory, icons, sprites));
+            pathStream.filter(Files::isDirectory).forEach(directory ->
+                    transform(directory, icons, sprites, aliases.getOrDefault(directory, Map.of()), aliasedContents));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     protected void transform(Path directory, Path icons, Path sprites) {
-        logger.fine("Start building sprite for directory " + directory.toFile().getAbsolutePath());
+        transform(directory, icons, sprites, Map.of(), new HashMap<>());
+    }
+
+    /**
+     * Builds the sprite of a directory, expanding the aliases it holds into sprites of their original icon.
+     * Icons and aliases are taken in file name order, so that sprite names colliding in the file are renamed the same way
+     * on every run, whether the icons were deduplicated or not.
+     *
+     * @param aliases         original icon of each alias of the directory, by icon name
+     * @param aliasedContents sprite content of the original icons already expanded, shared between directories
+     */
+    protected void transform(Path directory, Path icons, Path sprites, Map<String, Path> aliases, Map<Path, String> aliasedContents) {
+        logger.fine("Start building sprite for directory " + directory.toAbsolutePath());
+        File pumlFile = getPumlFile(directory, icons, sprites);
+        NameNormalizer.Scope scope = names.newScope(spriteKey(pumlFile, sprites), isIconLayout());
         try (Stream<Path> pathStream = Files.list(directory)) {
-            String content = pathStream.filter(Files::isRegularFile)
-                    .map(Path::toFile)
-                    .filter(f -> f.getName().endsWith(".svg"))
-                    .map(this::toInlineSprite)
-                    .collect(Collectors.joining("\n"));
+            //aliases are sorted in among the icons, so that they are named as the files they stand for would be
+            Map<String, Path> files = new TreeMap<>();
+            pathStream.filter(Files::isRegularFile)
+                    .filter(svg -> svg.getFileName().toString().endsWith(".svg"))
+                    .forEach(svg -> files.put(svg.getFileName().toString(), svg));
+            aliases.forEach((alias, original) -> files.put(alias + ".svg", original));
+            List<String> lines = files.entrySet().stream()
+                    .map(icon -> {
+                        String name = icon.getKey().substring(0, icon.getKey().lastIndexOf("."));
+                        if (!aliases.containsKey(name)) {
+                            return toInlineSprite(icon.getValue(), scope);
+                        }
+                        metrics().cache(aliasedContents.containsKey(icon.getValue()));
+                        return toInlineSprite(scope, name, aliasedContents.computeIfAbsent(icon.getValue(), original -> {
+                            try {
+                                return extractValidContent(original);
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }));
+                    })
+                    .toList();
+
+            if (!lines.isEmpty()) {
+                metrics().increment(MetricsRegistry.LIBRARIES);
+                writeSprites(pumlFile, lines, false, sprites);
+            }
+        } catch (IOException e) {
+            logger.severe("Error walking over " + directory.toAbsolutePath());
+            throw new RuntimeException(e);
+        }
+        logger.fine("End building sprite for directory " + directory.toAbsolutePath());
+    }
 
+    /**
+     * Groups the aliases left by the extractor by directory, each alias being named after its file.
+     */
+    protected Map<Path, Map<String, Path>> loadAliases(Path icons) {
+        Map<Path, Map<String, Path>> aliases = new HashMap<>();
+        IconStore.loadAliases(icons).forEach((alias, original) -> {
+            Path file = icons.resolve(alias);
+            String name = file.getFileName().toString();
+            aliases.computeIfAbsent(file.getParent(), directory -> new TreeMap<>())
+                    .put(name.substring(0, name.lastIndexOf(".")), icons.resolve(original));
+        });
+        return aliases;
+    }
+
+    /**
+     * Builds the sprite of an in-memory icon set, the icons being already parsed by a previous stage.
+     * Libraries sharing a folder are merged into the same sprite when {@code append} is set. The sprites are ordered by
+     * icon file name, as they are when built from the icons directory.
+     */
+    public void transform(IconSet icons, Path sprites, boolean append) {
+        logger.fine("Start building sprite for library " + icons.folder());
+        File pumlFile = getPumlFile(sprites.resolve(icons.folder()), sprites, sprites);
+        String key = spriteKey(pumlFile, sprites);
+        NameNormalizer.Scope scope = append ? names.scope(key, isIconLayout()) : names.newScope(key, isIconLayout());
+        Map<String, String> files = append ? iconFiles.computeIfAbsent(key, k -> new HashMap<>()) : new HashMap<>();
+        iconFiles.put(key, files);
+        Map<String, String> content = new HashMap<>();
+        try {
+            if (append && pumlFile.exists() && !isIconLayout()) {
+                readSprites(pumlFile).forEach(line -> content.put(line.split(" ", 3)[1], line));
+            }
+            metrics().increment(MetricsRegistry.LIBRARIES);
+            icons.icons().stream()
+                    .sorted(Comparator.comparing(icon -> icon.name() + ".svg"))
+                    .forEach(icon -> {
+                        long start = System.nanoTime();
+                        String spriteName = scope.claim(toSpriteName(icon.name()));
+                        files.put(spriteName, icon.name() + ".svg");
+                        content.put(spriteName, toInlineSprite(spriteName, extractValidContent(icon.svg())));
+                        metrics().increment(MetricsRegistry.ICONS);
+                        metrics().latency(start);
+                    });
             if (!content.isEmpty()) {
-                File pumlFile = getPumlFile(directory, icons, sprites);
-                Files.createDirectories(pumlFile.toPath().getParent());
-                try (PrintWriter pw = new PrintWriter(pumlFile)) {
-                    pw.println("@startuml");
-                    pw.println(content);
-                    pw.println("@enduml");
-                }
-                logger.fine("Created sprite " + pumlFile.getAbsolutePath());
-
-                File pumlViewFile = new File(pumlFile.getParentFile(), pumlFile.getName().replace(".puml", "_view.puml"));
-                try (PrintWriter pw = new PrintWriter(pumlViewFile)) {
-                    pw.println("@startuml");
-                    pw.println("skinparam svgInline true");
-                    pw.print("!include ");
-                    pw.println(pumlFile.getName());
-                    pw.println("listsprites");
-                    pw.println("@enduml");
-                }
-                logger.fine("Created sprite view " + pumlViewFile.getAbsolutePath());
+                List<String> lines = content.entrySet().stream()
+                        .sorted(Comparator.comparing(sprite -> files.getOrDefault(sprite.getKey(), sprite.getKey())))
+                        .map(Map.Entry::getValue)
+                        .toList();
+                writeSprites(pumlFile, lines, append, sprites);
             }
         } catch (IOException e) {
-            logger.severe("Error walking over " + directory.toFile().getAbsolutePath());
+            logger.severe("Error writing sprite for library " + icons.folder());
             throw new RuntimeException(e);
         }
-        logger.fine("End building sprite for directory " + directory.toFile().getAbsolutePath());
+        logger.fine("End building sprite for library " + icons.folder());
+    }
+
+    protected boolean isIconLayout() {
+        return ICON.equals(getConfig().app().transformer().layout().type());
+    }
+
+    /**
+     * Writes the sprites of a directory as set by {@code transformer.layout}, either bundled in the sprite file or each
+     * in its own file, the sprite file then being an index of procedures including them.
+     *
+     * @param append keeps the sprite files already written for the directory, in the icon layout
+     */
+    protected void writeSprites(File pumlFile, Collection<String> sprites, boolean append, Path spritesRoot) throws IOException {
+        sprites.forEach(sprite -> metrics().add(MetricsRegistry.BYTES_OUT, sprite.getBytes(StandardCharsets.UTF_8).length + 1));
+        if (isIconLayout()) {
+            writeIconSprites(pumlFile, sprites, append, spritesRoot);
+        } else {
+            writeBundle(pumlFile, sprites);
+        }
+    }
+
+    /**
+     * Writes the sprites of a directory in the sprite file, or in shards of the {@code <name>_sprites} folder when they
+     * exceed {@code transformer.layout.maxBytes} or {@code maxSprites}, the sprite file then including them.
+     * Shards are named after the hash bits of the sprite names they hold and kept from a run to the next, so that a new
+     * sprite only changes its own shard, or splits it in two when it no longer fits.
+     */
+    protected void writeBundle(File pumlFile, Collection<String> sprites) throws IOException {
+        String bundleName = pumlFile.getName().substring(0, pumlFile.getName().length() - ".puml".length());
+        Path folder = pumlFile.toPath().resolveSibling(bundleName + SPRITES_SUFFIX);
+        Set<String> previous = shardKeys(folder, bundleName);
+        deleteSprites(folder);
+        Map<String, List<String>> shards = shard(sprites, previous);
+        if (shards.size() <= 1) {
+            writeSprites(pumlFile, String.join("\n", sprites));
+            return;
+        }
+
+        Files.createDirectories(folder);
+        List<String> includes = new ArrayList<>();
+        for (Map.Entry<String, List<String>> shard : shards.entrySet()) {
+            String shardName = String.format("%s_%s.puml", bundleName, shard.getKey());
+            try (PrintWriter pw = new PrintWriter(folder.resolve(shardName).toFile(), StandardCharsets.UTF_8)) {
+                pw.println("@startuml");
+                shard.getValue().forEach(pw::println);
+                pw.println("@enduml");
+            }
+            includes.add("!include " + folder.getFileName() + "/" + shardName);
+        }
+        writeSprites(pumlFile, String.join("\n", includes));
+        logger.fine(String.format("Split sprite %s into %d shard(s)", pumlFile.getAbsolutePath(), shards.size()));
+    }
+
+    /**
+     * Spreads the sprites over shards keyed by the low bits of the hash of their name, keeping their order within a
+     * shard. Starting from the {@code previous} keys, a shard holding several sprites over the layout limits is split
+     * by the next bit, the other shards being left as they are. Previous keys not covering every sprite are dropped.
+     *
+     * @return the sprites of each shard, by key, the single key being empty when no shard is needed
+     */
+    protected Map<String, List<String>> shard(Collection<String> sprites, Set<String> previous) {
+        AppConfig.App.Layout layout = getConfig().app().transformer().layout();
+        long maxBytes = (layout.maxBytes() != null) ? layout.maxBytes() : Long.MAX_VALUE;
+        int maxSprites = (layout.maxSprites() != null) ? layout.maxSprites() : Integer.MAX_VALUE;
+        Set<String> keys = new TreeSet<>(previous);
+        if (keys.isEmpty() || sprites.stream().anyMatch(sprite -> shardKey(sprite, keys) == null)) {
+            keys.clear();
+            keys.add("");
+        }
+        while (true) {
+            Map<String, List<String>> shards = new TreeMap<>();
+            keys.forEach(key -> shards.put(key, new ArrayList<>()));
+            sprites.forEach(sprite -> shards.get(shardKey(sprite, keys)).add(sprite));
+            List<String> overflowing = shards.entrySet().stream()
+                    .filter(shard -> (shard.getValue().size() > 1) && (shard.getKey().length() < Integer.SIZE)
+                            && ((shard.getValue().size() > maxSprites)
+                            || (shard.getValue().stream().mapToLong(sprite -> sprite.getBytes(StandardCharsets.UTF_8).length + 1).sum() > maxBytes)))
+                    .map(Map.Entry::getKey)
+                    .toList();
+            if (overflowing.isEmpty()) {
+                return shards;
+            }
+            overflowing.forEach(key -> {
+                keys.remove(key);
+                keys.add(key + "0");
+                keys.add(key + "1");
+            });
+        }
+    }
+
+    /**
+     * Key of the shard holding a sprite, the one matching the low bits of the hash of its name, null when none does.
+     */
+    protected String shardKey(String sprite, Set<String> keys) {
+        int hash = sprite.split(" ", 3)[1].hashCode();
+        hash ^= (hash >>> 16);
+        StringBuilder bits = new StringBuilder();
+        for (int i = 0; i <= Integer.SIZE; i++) {
+            if (keys.contains(bits.toString())) {
+                return bits.toString();
+            }
+            bits.append((hash >>> i) & 1);
+        }
+        return null;
+    }
+
+    /**
+     * Keys of the shards written in a {@code <name>_sprites} folder by a previous run, none when it does not exist.
+     */
+    protected Set<String> shardKeys(Path folder, String bundleName) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return Set.of();
+        }
+        Pattern shardName = Pattern.compile(Pattern.quote(bundleName) + "_([01]+)\\.puml");
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.map(file -> shardName.matcher(file.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> matcher.group(1))
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    /**
+     * Reads the sprites of a sprite file, following the includes of its shards.
+     */
+    protected List<String> readSprites(File pumlFile) throws IOException {
+        List<String> sprites = new ArrayList<>();
+        for (String line : Files.readAllLines(pumlFile.toPath())) {
+            if (line.startsWith("sprite ")) {
+                sprites.add(line);
+            } else if (line.startsWith("!include ")) {
+                sprites.addAll(readSprites(new File(pumlFile.getParentFile(), line.substring("!include ".length()))));
+            }
+        }
+        return sprites;
+    }
+
+    /**
+     * Deletes the sprite files left in a {@code <name>_sprites} folder by a previous run, and the folder once empty.
+     */
+    protected void deleteSprites(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (Stream<Path> stale = Files.list(folder)) {
+            for (Path file : stale.filter(file -> file.getFileName().toString().endsWith(".puml")).toList()) {
+                Files.delete(file);
+            }
+        }
+        try (Stream<Path> left = Files.list(folder)) {
+            if (left.findAny().isEmpty()) {
+                Files.delete(folder);
+            }
+        }
     }
 
-    protected String toInlineSprite(File svg) {
-        String name = toSpriteName(svg.getName().substring(0, svg.getName().lastIndexOf(".")));
+    /**
+     * Writes each sprite in the {@code <name>_sprites} folder next to the sprite file, which gets a {@code $<sprite>()}
+     * procedure per sprite of the folder, so that diagrams only load the sprites they use.
+     * <p>
+     * PlantUML resolves includes of a procedure against the calling diagram, hence the sprite files are included from
+     * {@code $SPRITES}, the sprites directory as seen by the diagram, {@code .} unless set before the index is included.
+     */
+    protected void writeIconSprites(File pumlFile, Collection<String> sprites, boolean append, Path spritesRoot) throws IOException {
+        String bundleName = pumlFile.getName().substring(0, pumlFile.getName().length() - ".puml".length());
+        Path folder = pumlFile.toPath().resolveSibling(bundleName + SPRITES_SUFFIX);
+        if (!append) {
+            deleteSprites(folder);
+        }
+        Files.createDirectories(folder);
+        for (String sprite : sprites) {
+            try (PrintWriter pw = new PrintWriter(folder.resolve(sprite.split(" ", 3)[1] + ".puml").toFile(), StandardCharsets.UTF_8)) {
+                pw.println("@startuml");
+                pw.println(sprite);
+                pw.println("@enduml");
+            }
+        }
+
+        List<String> spriteNames;
+        try (Stream<Path> files = Files.list(folder)) {
+            spriteNames = files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".puml"))
+                    .map(name -> name.substring(0, name.length() - ".puml".length()))
+                    .sorted()
+                    .toList();
+        }
+        String directory = spritesRoot.toAbsolutePath().relativize(folder.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+        try (PrintWriter pw = new PrintWriter(pumlFile, StandardCharsets.UTF_8)) {
+            pw.println("@startuml");
+            pw.println("' $<sprite>() loads a sprite, $SPRITES being the sprites directory relative to the diagram");
+            pw.println("!if %not(%variable_exists(\"$SPRITES\"))");
+            pw.println("!$SPRITES = \".\"");
+            pw.println("!endif");
+            for (String spriteName : spriteNames) {
+                pw.println("!procedure $" + spriteName + "()");
+                pw.println("!include_many $SPRITES/" + directory + "/" + spriteName + ".puml");
+                pw.println("!endprocedure");
+            }
+            pw.println("@enduml");
+        }
+        logger.fine(String.format("Created sprite index %s of %d sprite(s)", pumlFile.getAbsolutePath(), spriteNames.size()));
+
+        File pumlViewFile = new File(pumlFile.getParentFile(), bundleName + "_view.puml");
+        Path toRoot = pumlFile.toPath().getParent().toAbsolutePath().relativize(spritesRoot.toAbsolutePath());
+        try (PrintWriter pw = new PrintWriter(pumlViewFile, StandardCharsets.UTF_8)) {
+            pw.println("@startuml");
+            pw.println("skinparam svgInline true");
+            pw.println("!$SPRITES = \"" + (toRoot.toString().isEmpty() ? "." : toRoot.toString().replace(File.separatorChar, '/')) + "\"");
+            pw.print("!include ");
+            pw.println(pumlFile.getName());
+            spriteNames.forEach(spriteName -> pw.println("$" + spriteName + "()"));
+            pw.println("listsprites");
+            pw.println("@enduml");
+        }
+        logger.fine("Created sprite view " + pumlViewFile.getAbsolutePath());
+    }
+
+    protected void writeSprites(File pumlFile, String content) throws IOException {
+        Files.createDirectories(pumlFile.toPath().getParent());
+        try (PrintWriter pw = new PrintWriter(pumlFile, StandardCharsets.UTF_8)) {
+            pw.println("@startuml");
+            pw.println(content);
+            pw.println("@enduml");
+        }
+        logger.fine("Created sprite " + pumlFile.getAbsolutePath());
+
+        File pumlViewFile = new File(pumlFile.getParentFile(), pumlFile.getName().replace(".puml", "_view.puml"));
+        try (PrintWriter pw = new PrintWriter(pumlViewFile, StandardCharsets.UTF_8)) {
+            pw.println("@startuml");
+            pw.println("skinparam svgInline true");
+            pw.print("!include ");
+            pw.println(pumlFile.getName());
+            pw.println("listsprites");
+            pw.println("@enduml");
+        }
+        logger.fine("Created sprite view " + pumlViewFile.getAbsolutePath());
+    }
+
+    protected String toInlineSprite(Path svg, NameNormalizer.Scope scope) {
         try {
+            long start = System.nanoTime();
             String content = extractValidContent(svg);
-            logger.finer("sprite for " + svg.getAbsolutePath());
-            return String.format("sprite %s %s", name, content);
+            logger.finer("sprite for " + svg.toAbsolutePath());
+            String name = svg.getFileName().toString();
+            String sprite = toInlineSprite(scope, name.substring(0, name.lastIndexOf(".")), content);
+            metrics().increment(MetricsRegistry.ICONS);
+            metrics().add(MetricsRegistry.BYTES_IN, Files.size(svg));
+            metrics().latency(start);
+            return sprite;
         } catch (IOException e) {
-            logger.severe("Error reading file " + svg.getAbsolutePath());
+            logger.severe("Error reading file " + svg.toAbsolutePath());
             throw new RuntimeException(e);
         }
     }
 
-    protected String extractValidContent(File file) throws IOException {
-        String content = new String(Files.readAllBytes(file.toPath()));
-        Document doc = Jsoup.parse(content, Parser.xmlParser());
-        Element svg = doc.selectFirst("svg");
+    protected String toInlineSprite(String iconName, String content) {
+        return String.format("sprite %s %s", toSpriteName(iconName), content);
+    }
+
+    /**
+     * Inline sprite of an icon, named after the icon unless the name is already taken in the sprite file.
+     */
+    protected String toInlineSprite(NameNormalizer.Scope scope, String iconName, String content) {
+        return toInlineSprite(scope.claim(toSpriteName(iconName)), content);
+    }
+
+    /**
+     * Reads an icon through its file system, the icons being possibly held by an archive.
+     */
+    protected String extractValidContent(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            Document doc = Jsoup.parse(in, StandardCharsets.UTF_8.name(), "", Parser.xmlParser());
+            return extractValidContent(doc.selectFirst("svg"));
+        }
+    }
+
+    protected String extractValidContent(Element svg) {
         svg.removeAttr("xmlns");
         Element validSVG = removeUnsupportedTags(svg);
         return validSVG.outerHtml();
@@ -115,29 +472,26 @@ public class IconToSpriteTransformer extends Processor {
 
         logger.fine("Discard empty groups and compact non-empty groups");
         //discard empty groups and compact non-empty groups
-        while ((svg.selectFirst("g:empty") != null) || (svg.selectFirst("g>g:only-child") != null)) {
-            svg.select("g:empty").forEach(Node::remove);
-            Element onlyChild = svg.selectFirst("g>g:only-child");
-            while (onlyChild != null) {
-                assert onlyChild.parent() != null;
-                onlyChild.parent().replaceWith(onlyChild);
-                onlyChild = svg.selectFirst("g>g:only-child");
-            }
-        }
-        return svg;
+        return SvgTreeCompactor.compact(svg);
     }
 
     protected File getPumlFile(Path directory, Path icons, Path sprites) {
-        File pumlFile = sprites.resolve(icons.relativize(directory)).toFile();
+        File pumlFile = sprites.resolve(relativize(icons, directory)).toFile();
         pumlFile = Path.of(pumlFile.getParentFile().getAbsolutePath(), toSpriteName(pumlFile.getName()) + ".puml").toFile();
-        logger.finer(String.format("%s -> %s", directory.toFile().getAbsolutePath(), pumlFile.getAbsolutePath()));
+        logger.finer(String.format("%s -> %s", directory.toAbsolutePath(), pumlFile.getAbsolutePath()));
         return pumlFile;
     }
 
+    /**
+     * Scope of the sprite names of a sprite file, its path relative to the sprites directory without extension.
+     */
+    protected String spriteKey(File pumlFile, Path sprites) {
+        String path = sprites.toAbsolutePath().relativize(pumlFile.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/');
+        return path.substring(0, path.length() - ".puml".length());
+    }
+
     public String toSpriteName(String name) {
-        String spriteName = name.replaceAll("[)(&]", "")
-                .replaceAll("[\\s-,\\/:?\"<>|.]+", "_")
-                .replace("_$", "");
+        String spriteName = NameNormalizer.toSpriteName(name);
         logger.finer(String.format("%s -> %s", name, spriteName));
         return spriteName;
     }
@@ -0,0 +1,111 @@
+package m4z.app.etl.svg;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Sizes and optimization times of the icons of a run, collected while the optimizer runs, the icons an incremental
+ * run leaves unchanged being carried over without a time.
+ * <p>
+ * Written at the root of the output as {@value #CSV}, one row per icon, and as {@value #JSON} holding the totals, the
+ * aggregates of each library, and the icons compressed the least, libraries and icons being sorted by decreasing ratio
+ * of output to input size, a ratio being left empty when there is no input.
+ */
+public class CompressionReport {
+    public static final String CSV = "compression-report.csv";
+    public static final String JSON = "compression-report.json";
+    private static final Logger logger = Logger.getLogger(CompressionReport.class.getName());
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+    private static final Comparator<Double> DECREASING = Comparator.nullsLast(Comparator.reverseOrder());
+
+    private final Queue<Row> rows = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param icon  path of the icon relative to the output, its folder being its library
+     * @param nanos time spent on the icon, negative when unknown
+     */
+    public void add(String icon, long bytesIn, long bytesOut, long nanos) {
+        int slash = icon.lastIndexOf('/');
+        rows.add(new Row((slash < 0) ? "" : icon.substring(0, slash), icon.substring(slash + 1), bytesIn, bytesOut,
+                ratio(bytesIn, bytesOut), (nanos < 0) ? null : nanos / 1e6));
+    }
+
+    /**
+     * Writes the report into the output, keeping the {@code worst} icons compressed the least.
+     */
+    public void write(Path target, int worst) {
+        List<Row> icons = rows.stream()
+                .sorted(Comparator.comparing(Row::ratio, DECREASING)
+                        .thenComparing(Comparator.comparingLong(Row::bytesOut).reversed())
+                        .thenComparing(Row::library)
+                        .thenComparing(Row::icon))
+                .toList();
+        Map<String, List<Row>> byLibrary = icons.stream().collect(Collectors.groupingBy(Row::library, TreeMap::new, Collectors.toList()));
+        List<Aggregate> libraries = byLibrary.entrySet().stream()
+                .map(library -> Aggregate.of(library.getKey(), library.getValue()))
+                .sorted(Comparator.comparing(Aggregate::ratio, DECREASING).thenComparing(Aggregate::library))
+                .toList();
+
+        Aggregate total = Aggregate.of("", icons);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("total", total);
+        report.put("libraries", libraries);
+        report.put("worstOffenders", icons.subList(0, Math.min(worst, icons.size())));
+        try {
+            Files.createDirectories(target);
+            try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(target.resolve(CSV), StandardCharsets.UTF_8))) {
+                pw.println("library,icon,bytesIn,bytesOut,ratio,millis");
+                for (Row row : icons) {
+                    pw.printf(Locale.ROOT, "%s,%s,%d,%d,%s,%s%n", csv(row.library()), csv(row.icon()), row.bytesIn(), row.bytesOut(),
+                            (row.ratio() == null) ? "" : String.format(Locale.ROOT, "%.4f", row.ratio()),
+                            (row.millis() == null) ? "" : String.format(Locale.ROOT, "%.3f", row.millis()));
+                }
+            }
+            try (Writer writer = Files.newBufferedWriter(target.resolve(JSON), StandardCharsets.UTF_8)) {
+                gson.toJson(report, writer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        logger.info(String.format(Locale.ROOT, "%d icon(s) from %d to %d byte(s) (%s), report in %s",
+                total.icons(), total.bytesIn(), total.bytesOut(),
+                (total.ratio() == null) ? "n/a" : String.format(Locale.ROOT, "%.1f%%", total.ratio() * 100),
+                target.resolve(JSON)));
+    }
+
+    private static String csv(String value) {
+        if ((value.indexOf(',') < 0) && (value.indexOf('"') < 0) && (value.indexOf('\n') < 0)) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static Double ratio(long bytesIn, long bytesOut) {
+        return (bytesIn == 0) ? null : (double) bytesOut / bytesIn;
+    }
+
+    protected record Row(String library, String icon, long bytesIn, long bytesOut, Double ratio, Double millis) {
+    }
+
+    protected record Aggregate(String library, int icons, long bytesIn, long bytesOut, long bytesSaved, Double ratio,
+                               Double millis) {
+        protected static Aggregate of(String library, List<Row> rows) {
+            long bytesIn = rows.stream().mapToLong(Row::bytesIn).sum();
+            long bytesOut = rows.stream().mapToLong(Row::bytesOut).sum();
+            List<Double> times = rows.stream().map(Row::millis).filter(Objects::nonNull).toList();
+            return new Aggregate(library, rows.size(), bytesIn, bytesOut, bytesIn - bytesOut, CompressionReport.ratio(bytesIn, bytesOut),
+                    times.isEmpty() ? null : times.stream().mapToDouble(Double::doubleValue).sum());
+        }
+    }
+}
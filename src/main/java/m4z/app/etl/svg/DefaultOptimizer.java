@@ -1,16 +1,17 @@
 package m4z.app.etl.svg;
 
 import m4z.app.config.AppConfig;
-import m4z.app.etl.Processor;
+import m4z.app.etl.IconSet;
+import m4z.app.metrics.MetricsRegistry;
+import m4z.app.tools.Hashes;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.*;
 import org.jsoup.parser.Parser;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -18,88 +19,85 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
-public class DefaultOptimizer extends Processor {
+public class DefaultOptimizer extends TreeOptimizer {
     private static final Logger logger = Logger.getLogger(DefaultOptimizer.class.getName());
     private static final Pattern P_SIZE = Pattern.compile("(?<size>(\\d+\\.?\\d+))p[tx]");
     private static final String equals_something = "=\"([^\"]+)\"";
     private static final String colon_something = ":([^;\"]+)";
     private static final Pattern STYLE_FONT_SIZE = Pattern.compile(Pattern.quote("font-size") + colon_something);
     private static final Pattern DATA_FONT_SIZE = Pattern.compile("font-size" + equals_something);
+    protected static final int RULES_VERSION = 3;
 
+    private final PathDataOptimizer pathData;
 
     public DefaultOptimizer(AppConfig config) {
         super(config);
+        Integer precision = config.app().optimizer().precision();
+        pathData = (precision != null) ? new PathDataOptimizer(precision) : null;
     }
 
+    /**
+     * Identifies the optimization rules and settings, a change invalidating every icon recorded in the manifest.
+     * Bump {@link #RULES_VERSION} whenever the rules themselves change.
+     */
     @Override
-    public void process() {
-        Path source = Paths.get(getConfig().app().optimizer().input().path());
-        Path target = Paths.get(getConfig().app().optimizer().output());
-        optimize(source, target);
+    protected String fingerprint() {
+        return Hashes.sha256(String.join("|", getClass().getName(), String.valueOf(RULES_VERSION),
+                String.valueOf(getConfig().app().optimizer().precision())));
     }
 
-    protected void optimize(Path source, Path target) {
+    @Override
+    protected void optimizeInternal(Path icon, Path optimized) {
+        Document doc;
         try {
-            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path svg, BasicFileAttributes attrs) {
-                    if (svg.toFile().getName().endsWith(".svg")) {
-                        Path optimized = target.resolve(source.relativize(svg));
-                        optimizeInternal(svg, optimized);
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                    Path optimized = target.resolve(source.relativize(dir));
-                    try {
-                        Files.createDirectories(optimized);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFileFailed(Path file, IOException exc) {
-                    System.err.println("Error accessing file: " + file);
-                    return FileVisitResult.CONTINUE;
-                }
-            });
+            doc = Jsoup.parse(icon, StandardCharsets.UTF_8.name(), "", Parser.xmlParser());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-    }
-
-    protected void optimizeInternal(Path icon, Path optimized) {
-        String content = read(icon);
-        Document doc = Jsoup.parse(content, Parser.xmlParser());
         Element svg = doc.selectFirst("svg");
         svg = optimize(svg);
-        write(optimized, svg.outerHtml().replaceAll(">[\r\n\\s]+<", "><"));
+        write(optimized, serialize(svg));
     }
 
-    protected Element optimize(Element svg) {
-        logger.fine("optimizing svg element limiting attribute set and compacting structure");
-        return optimizeAttributes(optimizeTree(svg));
+    /**
+     * Optimizes in place the icons handed over by a previous stage, leaving them as compact as a written file would be.
+     */
+    public void optimize(IconSet icons) {
+        metrics().increment(MetricsRegistry.LIBRARIES);
+        icons.icons().forEach(icon -> {
+            long start = System.nanoTime();
+            optimize(icon.svg());
+            icon.svg().select("*").forEach(element -> element.textNodes().stream()
+                    .filter(TextNode::isBlank)
+                    .forEach(Node::remove));
+            metrics().increment(MetricsRegistry.ICONS);
+            metrics().latency(start);
+        });
     }
 
-    protected String read(Path svg) {
+    public void saveIcons(IconSet icons, Path target) {
+        Path folder = target.resolve(icons.folder());
         try {
-            return new String(Files.readAllBytes(svg));
+            if (!icons.icons().isEmpty()) {
+                Files.createDirectories(folder);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        icons.icons().forEach(icon -> {
+            byte[] content = serialize(icon.svg()).getBytes(StandardCharsets.UTF_8);
+            metrics().add(MetricsRegistry.BYTES_OUT, content.length);
+            write(folder.resolve(icon.name() + ".svg"), content);
+        });
     }
 
-    protected void write(Path svg, String content) {
-        try (PrintWriter pw = new PrintWriter(svg.toFile())) {
-            pw.print(content);
-            pw.flush();
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+    protected String serialize(Element svg) {
+        return svg.outerHtml().replaceAll(">[\r\n\\s]+<", "><");
+    }
+
+    public Element optimize(Element svg) {
+        logger.fine("optimizing svg element limiting attribute set and compacting structure");
+        return optimizeAttributes(optimizeTree(svg));
     }
 
     protected Element optimizeAttributes(Element svg) {
@@ -154,16 +152,7 @@ public class DefaultOptimizer extends Processor {
 
         logger.fine("Discard empty groups and compact non-empty groups");
         //discard empty groups and compact non-empty groups
-        while ((svg.selectFirst("g:empty") != null) || (svg.selectFirst("g>g:only-child") != null)) {
-            svg.select("g:empty").forEach(Node::remove);
-            Element onlyChild = svg.selectFirst("g>g:only-child");
-            while (onlyChild != null) {
-                assert onlyChild.parent() != null;
-                onlyChild.parent().replaceWith(onlyChild);
-                onlyChild = svg.selectFirst("g>g:only-child");
-            }
-        }
-        return svg;
+        return SvgTreeCompactor.compact(svg);
     }
 
     protected void discardCustomAttributes(Element svg) {
@@ -177,7 +166,7 @@ public class DefaultOptimizer extends Processor {
                 } else if (!(attribute.getKey().contains(":") || attribute.getKey().contains("-"))) {   //discard custom attributes
                     logger.finer(String.format("Retain attribute %s=%s", attribute.getKey(), attribute.getValue()));
                     correctFontSize(attribute);
-                    element.attr(attribute.getKey(), attribute.getValue());
+                    element.attr(attribute.getKey(), optimizeGeometry(attribute.getKey(), attribute.getValue()));
                 } else {
                     logger.finer(String.format("Discard attribute %s=%s", attribute.getKey(), attribute.getValue()));
                 }
@@ -205,6 +194,13 @@ public class DefaultOptimizer extends Processor {
         }
     }
 
+    /**
+     * Shortens path data, points and transforms when {@code optimizer.precision} is set.
+     */
+    protected String optimizeGeometry(String name, String value) {
+        return (pathData != null) ? pathData.optimize(name, value) : value;
+    }
+
     protected String correctSize(String size) {
         String correctedSize = String.valueOf(Math.round(Float.parseFloat(size.replaceAll("[^\\d.]", ""))));
         logger.finer(String.format("%s -> %s", size, correctedSize));
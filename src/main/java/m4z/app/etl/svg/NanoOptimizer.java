@@ -1,121 +1,180 @@
 package m4z.app.etl.svg;
 
 import m4z.app.config.AppConfig;
-import m4z.app.config.ProxyManager;
-import m4z.app.etl.Processor;
+import m4z.app.http.CircuitBreaker;
+import m4z.app.http.HttpFetcher;
+import m4z.app.tools.Hashes;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Base64;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-
-public class NanoOptimizer extends Processor {
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optimizes icons through the nano web service.
+ * <p>
+ * Requests are pipelined, up to {@code optimizer.remote.window} of them being in flight while the next icons are read,
+ * so that the run is bound by the service throughput rather than by round trips. Once the service failed
+ * {@code failureThreshold} times in a row, the {@link DefaultOptimizer} takes over for the rest of the run. Icons
+ * optimized by the fallback are not recorded in the manifest, and are sent again on the next run.
+ */
+public class NanoOptimizer extends TreeOptimizer {
+    private static final Logger logger = Logger.getLogger(NanoOptimizer.class.getName());
     public static String NANO_OPTIMIZER_PATH = "https://vecta.io/nano/api";// "https://api.vecta.io/nano/optimize";
 
+    private final HttpFetcher fetcher;
+    private final URI endpoint;
+    private final CircuitBreaker breaker;
+    private DefaultOptimizer fallback;
+
     public NanoOptimizer(AppConfig config) {
+        this(config, HttpFetcher.getInstance(config));
+    }
+
+    public NanoOptimizer(AppConfig config, HttpFetcher fetcher) {
         super(config);
+        this.fetcher = fetcher;
+        AppConfig.App.Remote remote = config.app().optimizer().remote();
+        endpoint = URI.create((remote.endpoint() != null) ? remote.endpoint() : NANO_OPTIMIZER_PATH);
+        breaker = new CircuitBreaker("Nano optimizer " + endpoint, remote.failureThreshold());
     }
 
     @Override
-    public void process() {
-        Path source = Paths.get(getConfig().app().optimizer().input().path());
-        Path target = Paths.get(getConfig().app().optimizer().output());
-        optimize(source, target);
+    protected String fingerprint() {
+        return Hashes.sha256(String.join("|", getClass().getName(), endpoint.toString()));
     }
 
-    protected void optimize(Path source, Path target) {
-        try {
-            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                    if (file.toFile().getName().endsWith(".svg")) {
-                        Path optimized = target.resolve(source.relativize(file));
-                        optimizeInternal(file, optimized);
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
+    @Override
+    protected void optimizeFiles(Collection<List<Icon>> files, OptimizerManifest manifest, List<String> failures) {
+        Semaphore window = new Semaphore(getConfig().app().optimizer().remote().window());
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (List<Icon> file : files) {
+            List<Icon> outdated = file.stream()
+                    .filter(icon -> !isUpToDate(icon, manifest))
+                    .toList();
+            if (outdated.isEmpty()) {
+                logger.finer("Unchanged, skipped " + file.getFirst().name());
+                continue;
+            }
+            window.acquireUninterruptibly();
+            pending.add(optimizeAsync(outdated, manifest, failures).whenComplete((done, e) -> window.release()));
+        }
+        CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).join();
+    }
 
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                    Path optimized = target.resolve(source.relativize(dir));
-                    try {
-                        Files.createDirectories(optimized);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+    /**
+     * Sends the first icon of a file and writes the answer for all of them, the first output being linked by the others.
+     */
+    protected CompletableFuture<Void> optimizeAsync(List<Icon> file, OptimizerManifest manifest, List<String> failures) {
+        long start = System.nanoTime();
+        return callOptimizeOrSkip(file.getFirst().input())
+                .thenAccept(content -> {
+                    Path linked = null;
+                    for (Icon icon : file) {
+                        try {
+                            Files.deleteIfExists(icon.output());
+                            if (content == null) {
+                                fallback().optimizeInternal(icon.input(), icon.output());
+                                if (manifest != null) {
+                                    manifest.forget(icon.name());
+                                }
+                                recordIcon(icon, start);
+                                continue;
+                            }
+                            if (!link(icon.output(), linked)) {
+                                write(icon.output(), content);
+                                linked = icon.output();
+                            }
+                            if (manifest != null) {
+                                manifest.record(icon.name(), icon.input(), icon.attrs(), icon.output());
+                            }
+                            recordIcon(icon, start);
+                        } catch (IOException | RuntimeException e) {
+                            failures.add(icon.name());
+                            logger.log(Level.SEVERE, String.format("Icon '%s' failed", icon.name()), e);
+                        }
                     }
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFileFailed(Path file, IOException exc) {
-                    System.err.println("Error accessing file: " + file);
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+                });
     }
 
+    @Override
     protected void optimizeInternal(Path svg, Path optimized) {
         try {
-            String content = callOptimize(svg).get();
+            byte[] content = callOptimizeOrSkip(svg).get();
             if (content != null) {
                 write(optimized, content);
+            } else {
+                fallback().optimizeInternal(svg, optimized);
             }
-        } catch (InterruptedException | ExecutionException | IOException e) {
+        } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
         }
     }
 
-    protected CompletableFuture<String> callOptimize(Path svg) throws IOException {
-        HttpClient httpClient = HttpClient.newBuilder()
-                .proxy(ProxyManager.proxySelector())
-                .build();
+    /**
+     * Calls the service unless the breaker is open, completing with {@code null} when the icon is left to the fallback.
+     */
+    protected CompletableFuture<byte[]> callOptimizeOrSkip(Path svg) {
+        if (breaker.isOpen()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<byte[]> content;
+        try {
+            content = callOptimize(svg);
+        } catch (IOException | RuntimeException e) {
+            content = CompletableFuture.failedFuture(e);
+        }
+        return content.handle((optimized, e) -> {
+            if (e == null) {
+                breaker.success();
+                return optimized;
+            }
+            Throwable cause = (e instanceof CompletionException) ? e.getCause() : e;
+            logger.warning(String.format("Nano optimization of %s failed, falling back: %s", svg, cause));
+            breaker.failure(cause);
+            return null;
+        });
+    }
 
-        String requestBody = read(svg);
-        HttpRequest request = HttpRequest.newBuilder(URI.create(NANO_OPTIMIZER_PATH))
+    protected CompletableFuture<byte[]> callOptimize(Path svg) throws IOException {
+        HttpRequest request = fetcher.newRequest(endpoint)
                 //.header("Content-Type", "text/plain")
                 .header("Content-Type", "image/svg+xml")
                 //.header("Accept", "image/svg+xml")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                .POST(HttpRequest.BodyPublishers.ofFile(svg))
                 .build();
 
-        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return fetcher.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
                 .thenApply(res -> {
-                    System.out.printf("Http Status Code %d%n", res.statusCode());
-                    return res;
-                })
-                .thenApply(HttpResponse::body);
+                    logger.fine(String.format("Http Status Code %d for %s", res.statusCode(), svg));
+                    if (res.statusCode() != 200) {
+                        throw new CompletionException(new HttpFetcher.StatusException(endpoint.toString(), res.statusCode()));
+                    }
+                    return res.body();
+                });
     }
 
-    protected String toBase64(Path svg) {
-        return String.format("data:image/png;base64,%s", new String(Base64.getEncoder().encode(read(svg).getBytes())));
+    protected synchronized DefaultOptimizer fallback() {
+        if (fallback == null) {
+            fallback = new DefaultOptimizer(getConfig());
+        }
+        return fallback;
     }
 
-    protected String read(Path svg) {
+    protected String toBase64(Path svg) {
         try {
-            return new String(Files.readAllBytes(svg));
+            return String.format("data:image/png;base64,%s", Base64.getEncoder().encodeToString(Files.readAllBytes(svg)));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
-
-    protected void write(Path svg, String content) {
-        try (PrintWriter pw = new PrintWriter(svg.toFile())) {
-            pw.print(content);
-            pw.flush();
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
 }
@@ -0,0 +1,136 @@
+package m4z.app.etl.svg;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import m4z.app.tools.Hashes;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Record of a previous optimization run, stored with its output, telling which icons need to be optimized again.
+ * <p>
+ * An icon is up to date when the optimizer settings did not change and its input still has the recorded hash, the
+ * size and modification time of the input being checked first so that unchanged files are not even read.
+ */
+public class OptimizerManifest {
+    public static final String FILE_NAME = ".optimizer-manifest.json";
+    private static final Logger logger = Logger.getLogger(OptimizerManifest.class.getName());
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private final Path file;
+    private final String fingerprint;
+    private final boolean sameSettings;
+    private final Map<String, Entry> entries;
+
+    protected OptimizerManifest(Path file, String fingerprint, String previousFingerprint, Map<String, Entry> entries) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.sameSettings = fingerprint.equals(previousFingerprint);
+        this.entries = new ConcurrentHashMap<>(entries);
+    }
+
+    public static OptimizerManifest load(Path target, String fingerprint) {
+        Path file = target.resolve(FILE_NAME);
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                Content content = gson.fromJson(reader, Content.class);
+                if ((content != null) && (content.entries() != null)) {
+                    logger.fine(String.format("Loaded manifest of %d icons from %s", content.entries().size(), file));
+                    return new OptimizerManifest(file, fingerprint, content.fingerprint(), content.entries());
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warning(String.format("Ignoring unreadable manifest %s: %s", file, e));
+            }
+        }
+        return new OptimizerManifest(file, fingerprint, null, Map.of());
+    }
+
+    public boolean isUpToDate(String icon, Path input, BasicFileAttributes attributes, Path output) {
+        Entry entry = entries.get(icon);
+        if (!sameSettings || (entry == null)) {
+            return false;
+        }
+        try {
+            if (!Files.exists(output) || (Files.size(output) != entry.outputSize())) {
+                return false;
+            }
+            long modified = attributes.lastModifiedTime().toMillis();
+            if ((attributes.size() == entry.inputSize()) && (modified == entry.inputModified())) {
+                return true;
+            }
+            //touched but possibly unchanged, the content decides
+            if (Hashes.sha256(input).equals(entry.inputHash())) {
+                entries.put(icon, new Entry(entry.inputHash(), attributes.size(), modified, entry.outputHash(), entry.outputSize()));
+                return true;
+            }
+        } catch (IOException e) {
+            logger.fine(String.format("Unable to check %s: %s", icon, e));
+        }
+        return false;
+    }
+
+    public void record(String icon, Path input, BasicFileAttributes attributes, Path output) {
+        try {
+            entries.put(icon, new Entry(Hashes.sha256(input), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    Hashes.sha256(output), Files.size(output)));
+        } catch (IOException e) {
+            logger.warning(String.format("Unable to record %s in manifest: %s", icon, e));
+            entries.remove(icon);
+        }
+    }
+
+    /**
+     * Forgets an icon, which will be optimized again on the next run.
+     */
+    public void forget(String icon) {
+        entries.remove(icon);
+    }
+
+    /**
+     * Forgets the icons whose input disappeared, deleting their optimized output.
+     */
+    public void prune(Set<String> icons, Path target) {
+        entries.keySet().removeIf(icon -> {
+            if (icons.contains(icon)) {
+                return false;
+            }
+            try {
+                Files.deleteIfExists(target.resolve(icon));
+                logger.fine("Removed optimized icon of deleted input " + icon);
+            } catch (IOException e) {
+                logger.warning(String.format("Unable to remove %s: %s", icon, e));
+            }
+            return true;
+        });
+    }
+
+    public void save() {
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                gson.toJson(new Content(fingerprint, entries), writer);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected record Content(String fingerprint, Map<String, Entry> entries) {
+    }
+
+    protected record Entry(String inputHash, long inputSize, long inputModified, String outputHash, long outputSize) {
+    }
+}
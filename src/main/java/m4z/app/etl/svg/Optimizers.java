@@ -0,0 +1,38 @@
+package m4z.app.etl.svg;
+
+import m4z.app.config.AppConfig;
+import m4z.app.etl.Processor;
+
+import java.util.Locale;
+
+/**
+ * Creates the optimizer named by {@code optimizer.type}, {@link DefaultOptimizer} when none is set.
+ */
+public class Optimizers {
+    public static final String DEFAULT = "default";
+    public static final String STREAMING = "streaming";
+    public static final String NANO = "nano";
+    public static final String SVGO = "svgo";
+
+    public static Processor create(AppConfig config) {
+        String type = config.app().optimizer().type();
+        if (isDefault(config)) {
+            return new DefaultOptimizer(config);
+        }
+        return switch (type.trim().toLowerCase(Locale.ROOT)) {
+            case DEFAULT -> new DefaultOptimizer(config);
+            case STREAMING -> new StreamingOptimizer(config);
+            case NANO -> new NanoOptimizer(config);
+            case SVGO -> new SVGOptimizer(config);
+            default -> throw new IllegalArgumentException("Unknown optimizer type: " + type);
+        };
+    }
+
+    /**
+     * Tells whether {@code optimizer.type} selects {@link DefaultOptimizer}, the only one able to optimize icons in memory.
+     */
+    public static boolean isDefault(AppConfig config) {
+        String type = config.app().optimizer().type();
+        return (type == null) || type.isBlank() || DEFAULT.equals(type.trim().toLowerCase(Locale.ROOT));
+    }
+}
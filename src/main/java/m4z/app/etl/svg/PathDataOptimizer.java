@@ -0,0 +1,368 @@
+package m4z.app.etl.svg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites the geometry attributes {@code d}, {@code points} and {@code transform} as short as they can be written.
+ * <p>
+ * Coordinates are rounded to {@code precision} decimals and kept as integers of that scale, so that a segment written
+ * relative to the previous one lands exactly where its absolute form would, whichever form is shorter being chosen.
+ * Lines along an axis become {@code H}/{@code V}, repeated commands and the line following a move are left implicit,
+ * and numbers lose their leading and trailing zeros and the separators a minus sign or a second dot makes useless.
+ * Transform values are rounded to {@link #TRANSFORM_EXTRA_PRECISION} more decimals, scales and angles amplifying their
+ * error, and stay separated by spaces as the PlantUML sprite parser splits them. A value that does not parse is kept
+ * as is.
+ */
+public class PathDataOptimizer {
+    private static final Logger logger = Logger.getLogger(PathDataOptimizer.class.getName());
+    protected static final int MAX_PRECISION = 8;
+    protected static final int TRANSFORM_EXTRA_PRECISION = 2;
+
+    private final int precision;
+    private final double factor;
+
+    public PathDataOptimizer(int precision) {
+        this.precision = Math.max(0, Math.min(precision, MAX_PRECISION));
+        this.factor = Math.pow(10, this.precision);
+    }
+
+    /**
+     * Returns the optimized value of a geometry attribute, any other attribute being returned unchanged.
+     */
+    public String optimize(String name, String value) {
+        try {
+            String optimized = switch (name) {
+                case "d" -> optimizePath(value);
+                case "points" -> optimizePoints(value);
+                case "transform" -> optimizeTransform(value);
+                default -> value;
+            };
+            logger.finer(String.format("%s: %s -> %s", name, value, optimized));
+            return optimized;
+        } catch (IllegalArgumentException e) {
+            logger.fine(String.format("Unable to optimize %s=\"%s\": %s", name, value, e.getMessage()));
+            return value;
+        }
+    }
+
+    protected String optimizePath(String d) {
+        Path path = new Path();
+        Numbers numbers = new Numbers(d);
+        char command = 0;
+        while (numbers.skipSeparators()) {
+            if (Character.isLetter(numbers.peek())) {
+                command = numbers.next();
+                if ((command == 'Z') || (command == 'z')) {
+                    path.close();
+                    command = 0;
+                    continue;
+                }
+            } else if (command == 0) {
+                throw new IllegalArgumentException("Number without command at " + numbers.index);
+            }
+            boolean relative = Character.isLowerCase(command);
+            double x = relative ? path.x : 0;
+            double y = relative ? path.y : 0;
+            switch (Character.toUpperCase(command)) {
+                case 'M' -> {
+                    path.move(x + numbers.number(), y + numbers.number());
+                    //following pairs are implicit lines
+                    command = relative ? 'l' : 'L';
+                }
+                case 'L' -> path.line(x + numbers.number(), y + numbers.number());
+                case 'H' -> path.line(x + numbers.number(), path.y);
+                case 'V' -> path.line(path.x, y + numbers.number());
+                case 'C' -> path.curve('C', x, y, numbers.numbers(6));
+                case 'S' -> path.curve('S', x, y, numbers.numbers(4));
+                case 'Q' -> path.curve('Q', x, y, numbers.numbers(4));
+                case 'T' -> path.curve('T', x, y, numbers.numbers(2));
+                case 'A' -> path.arc(numbers.number(), numbers.number(), numbers.number(), numbers.flag(), numbers.flag(),
+                        x + numbers.number(), y + numbers.number());
+                default -> throw new IllegalArgumentException("Unknown command " + command);
+            }
+        }
+        return path.out.toString();
+    }
+
+    protected String optimizePoints(String points) {
+        Numbers numbers = new Numbers(points);
+        StringBuilder out = new StringBuilder();
+        String last = null;
+        while (numbers.skipSeparators()) {
+            last = append(out, last, format(round(numbers.number()), precision));
+        }
+        return out.toString();
+    }
+
+    protected String optimizeTransform(String transform) {
+        StringBuilder out = new StringBuilder();
+        int index = 0;
+        while (index < transform.length()) {
+            int open = transform.indexOf('(', index);
+            if (open < 0) {
+                if (!transform.substring(index).replace(',', ' ').isBlank()) {
+                    throw new IllegalArgumentException("Unexpected " + transform.substring(index));
+                }
+                break;
+            }
+            int close = transform.indexOf(')', open);
+            String function = transform.substring(index, open).replace(',', ' ').trim();
+            if ((close < 0) || function.isEmpty() || !function.chars().allMatch(Character::isLetter)) {
+                throw new IllegalArgumentException("Malformed transform " + transform);
+            }
+            if (!out.isEmpty()) {
+                out.append(' ');
+            }
+            out.append(function).append('(');
+            Numbers numbers = new Numbers(transform.substring(open + 1, close));
+            int scale = precision + TRANSFORM_EXTRA_PRECISION;
+            StringJoiner arguments = new StringJoiner(" ");
+            while (numbers.skipSeparators()) {
+                arguments.add(format(Math.round(numbers.number() * Math.pow(10, scale)), scale));
+            }
+            out.append(arguments);
+            out.append(')');
+            index = close + 1;
+        }
+        return out.toString();
+    }
+
+    protected long round(double value) {
+        return Math.round(value * factor);
+    }
+
+    /**
+     * Formats an integer of the given decimal scale, without leading or trailing zeros.
+     */
+    protected static String format(long value, int scale) {
+        if (value == 0) {
+            return "0";
+        }
+        StringBuilder digits = new StringBuilder(Long.toString(Math.abs(value)));
+        while (digits.length() <= scale) {
+            digits.insert(0, '0');
+        }
+        int point = digits.length() - scale;
+        int end = digits.length();
+        while ((end > point) && (digits.charAt(end - 1) == '0')) {
+            end--;
+        }
+        String integer = digits.substring(0, point);
+        String number = (end > point) ? (integer.equals("0") ? "" : integer) + "." + digits.substring(point, end) : integer;
+        return (value < 0) ? "-" + number : number;
+    }
+
+    /**
+     * Appends a number after the previous one, separated only when it would otherwise be read as part of it.
+     */
+    protected static String append(StringBuilder out, String previous, String number) {
+        if ((previous != null) && needsSeparator(previous, number)) {
+            out.append(' ');
+        }
+        out.append(number);
+        return number;
+    }
+
+    protected static boolean needsSeparator(String previous, String number) {
+        return !(number.startsWith("-") || (number.startsWith(".") && previous.contains(".")));
+    }
+
+    /**
+     * Path being written, its current point and subpath start kept both as read and as rounded for the output.
+     */
+    protected class Path {
+        private final StringBuilder out = new StringBuilder();
+        private double x, y, startX, startY;
+        private long rx, ry, startRx, startRy;
+        private char command;
+        private String number;
+
+        protected void move(double x, double y) {
+            long tx = round(x);
+            long ty = round(y);
+            emit('M', new long[]{tx, ty}, new long[]{tx - rx, ty - ry}, 0);
+            moveTo(x, y, tx, ty);
+            startX = x;
+            startY = y;
+            startRx = tx;
+            startRy = ty;
+        }
+
+        protected void line(double x, double y) {
+            long tx = round(x);
+            long ty = round(y);
+            if (ty == ry) {
+                emit('H', new long[]{tx}, new long[]{tx - rx}, 0);
+            } else if (tx == rx) {
+                emit('V', new long[]{ty}, new long[]{ty - ry}, 0);
+            } else {
+                emit('L', new long[]{tx, ty}, new long[]{tx - rx, ty - ry}, 0);
+            }
+            moveTo(x, y, tx, ty);
+        }
+
+        /**
+         * @param values control and end points, relative to {@code x}, {@code y}
+         */
+        protected void curve(char type, double x, double y, double[] values) {
+            long[] absolute = new long[values.length];
+            long[] relative = new long[values.length];
+            for (int i = 0; i < values.length; i += 2) {
+                absolute[i] = round(x + values[i]);
+                absolute[i + 1] = round(y + values[i + 1]);
+                relative[i] = absolute[i] - rx;
+                relative[i + 1] = absolute[i + 1] - ry;
+            }
+            emit(type, absolute, relative, 0);
+            moveTo(x + values[values.length - 2], y + values[values.length - 1], absolute[values.length - 2], absolute[values.length - 1]);
+        }
+
+        protected void arc(double radiusX, double radiusY, double rotation, boolean largeArc, boolean sweep, double x, double y) {
+            long tx = round(x);
+            long ty = round(y);
+            long[] parameters = {round(radiusX), round(radiusY), round(rotation), largeArc ? 1 : 0, sweep ? 1 : 0};
+            long[] absolute = {parameters[0], parameters[1], parameters[2], parameters[3], parameters[4], tx, ty};
+            long[] relative = {parameters[0], parameters[1], parameters[2], parameters[3], parameters[4], tx - rx, ty - ry};
+            emit('A', absolute, relative, 3);
+            moveTo(x, y, tx, ty);
+        }
+
+        protected void close() {
+            if ((command != 'z') && (command != 0)) {
+                out.append('z');
+                command = 'z';
+            }
+            moveTo(startX, startY, startRx, startRy);
+        }
+
+        private void moveTo(double x, double y, long rx, long ry) {
+            this.x = x;
+            this.y = y;
+            this.rx = rx;
+            this.ry = ry;
+        }
+
+        /**
+         * Writes the shorter of the absolute and relative forms of a segment.
+         *
+         * @param flags index of the first of two arc flags, written as is, or 0
+         */
+        private void emit(char type, long[] absolute, long[] relative, int flags) {
+            String[] absoluteForm = form(type, absolute, flags);
+            String[] relativeForm = form(Character.toLowerCase(type), relative, flags);
+            String[] form = (relativeForm[0].length() < absoluteForm[0].length()) ? relativeForm : absoluteForm;
+            out.append(form[0]);
+            command = form[1].charAt(0);
+            number = form[2];
+        }
+
+        /**
+         * Returns the text of a segment, the command written, and the last number written.
+         */
+        private String[] form(char type, long[] values, int flags) {
+            StringBuilder text = new StringBuilder();
+            String last = null;
+            //a repeated command, or a line right after a move, is implicit
+            boolean implicit = (type != 'M') && (type != 'm')
+                    && ((type == command) || ((type == 'L') && (command == 'M')) || ((type == 'l') && (command == 'm')));
+            if (implicit) {
+                last = number;
+            } else {
+                text.append(type);
+            }
+            for (int i = 0; i < values.length; i++) {
+                boolean flag = (flags > 0) && ((i == flags) || (i == flags + 1));
+                last = append(text, last, flag ? Long.toString(values[i]) : format(values[i], precision));
+            }
+            //moves are written again, as a repeated one would be read as a line
+            return new String[]{text.toString(), String.valueOf(implicit ? command : type), last};
+        }
+    }
+
+    /**
+     * Reads the numbers of a path, points or transform value.
+     */
+    protected static class Numbers {
+        private final String text;
+        private int index;
+
+        protected Numbers(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Skips whitespace and commas, returning whether anything is left.
+         */
+        protected boolean skipSeparators() {
+            while ((index < text.length()) && ((text.charAt(index) == ',') || Character.isWhitespace(text.charAt(index)))) {
+                index++;
+            }
+            return index < text.length();
+        }
+
+        protected char peek() {
+            return text.charAt(index);
+        }
+
+        protected char next() {
+            return text.charAt(index++);
+        }
+
+        protected double[] numbers(int count) {
+            double[] numbers = new double[count];
+            for (int i = 0; i < count; i++) {
+                numbers[i] = number();
+            }
+            return numbers;
+        }
+
+        protected boolean flag() {
+            skipSeparators();
+            if ((index >= text.length()) || ((peek() != '0') && (peek() != '1'))) {
+                throw new IllegalArgumentException("Flag expected at " + index);
+            }
+            return next() == '1';
+        }
+
+        protected double number() {
+            skipSeparators();
+            int start = index;
+            if ((index < text.length()) && ((peek() == '-') || (peek() == '+'))) {
+                index++;
+            }
+            boolean dot = false;
+            boolean digits = false;
+            while (index < text.length()) {
+                char c = peek();
+                if (Character.isDigit(c)) {
+                    digits = true;
+                } else if ((c == '.') && !dot) {
+                    dot = true;
+                } else {
+                    break;
+                }
+                index++;
+            }
+            if ((index < text.length()) && digits && ((peek() == 'e') || (peek() == 'E'))) {
+                index++;
+                if ((index < text.length()) && ((peek() == '-') || (peek() == '+'))) {
+                    index++;
+                }
+                while ((index < text.length()) && Character.isDigit(peek())) {
+                    index++;
+                }
+            }
+            if (!digits) {
+                throw new IllegalArgumentException("Number expected at " + start);
+            }
+            double number = Double.parseDouble(text.substring(start, index));
+            if (!Double.isFinite(number)) {
+                throw new IllegalArgumentException("Number out of range at " + start);
+            }
+            return number;
+        }
+    }
+}
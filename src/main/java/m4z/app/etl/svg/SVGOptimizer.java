@@ -1,49 +1,201 @@
 package m4z.app.etl.svg;
 
 import m4z.app.config.AppConfig;
-import m4z.app.etl.Processor;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
-public class SVGOptimizer extends Processor {
+/**
+ * Optimizes icons with the svgo command line tool.
+ * <p>
+ * The icons are split into shards of balanced size, one per {@code optimizer.concurrency} thread (a single one when
+ * inactive), each shard running its own svgo processes so that several cores are used. A shard passes its icons as
+ * file lists, in as many svgo calls as the command line length requires, and is given its failed icons once more.
+ */
+public class SVGOptimizer extends TreeOptimizer {
     private static final Logger logger = Logger.getLogger(SVGOptimizer.class.getName());
     public static String SVGO_URL = "https://optimize.svgomg.net/";
+    protected static final int MAX_ATTEMPTS = 2;
+    /**
+     * Characters of the file lists of a single svgo call, kept well below the Windows command line limit.
+     */
+    protected static final int MAX_COMMAND_LENGTH = 24_000;
 
     public SVGOptimizer(AppConfig config) {
         super(config);
 
     }
 
+    /**
+     * Rejects archives, svgo being given the paths of the icons on the default file system.
+     */
     @Override
-    public void process() {
-        Path source = Paths.get(getConfig().app().optimizer().input().path());
-        Path target = Paths.get(getConfig().app().optimizer().output());
-        optimize(source, target);
+    protected void optimize(Path source, Path target) {
+        if ((source.getFileSystem() != FileSystems.getDefault()) || (target.getFileSystem() != FileSystems.getDefault())) {
+            throw new IllegalArgumentException("svgo reads and writes directories, not " + ARCHIVE_EXTENSION + " archives");
+        }
+        super.optimize(source, target);
     }
 
-    protected void optimize(Path source, Path target) {
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        processBuilder.command("svgo", "-rf", source.toFile().getAbsolutePath(), "-o", target.toFile().getAbsolutePath());
+    @Override
+    protected void optimizeFiles(Collection<List<Icon>> files, OptimizerManifest manifest, List<String> failures) {
+        List<List<Icon>> outdated = files.stream()
+                .map(file -> file.stream()
+                        .filter(icon -> !isUpToDate(icon, manifest))
+                        .toList())
+                .filter(file -> !file.isEmpty())
+                .toList();
+        //a missing output then tells a failed icon, and svgo never writes through a link left by a previous run
+        outdated.forEach(file -> file.forEach(icon -> delete(icon.output())));
+
+        AppConfig.App.Concurrency concurrency = getConfig().app().optimizer().concurrency();
+        List<List<Icon>> shards = shard(outdated.stream().map(List::getFirst).toList(), concurrency.active() ? concurrency.threads() : 1);
+        if (shards.size() > 1) {
+            try (ExecutorService executor = newExecutor(concurrency)) {
+                CompletableFuture.allOf(IntStream.range(0, shards.size())
+                        .mapToObj(index -> CompletableFuture.runAsync(() -> optimizeShard(index + 1, shards.get(index)), executor))
+                        .toArray(CompletableFuture[]::new)).join();
+            }
+        } else {
+            shards.forEach(shard -> optimizeShard(1, shard));
+        }
+
+        for (List<Icon> file : outdated) {
+            Path optimized = file.getFirst().output();
+            for (Icon icon : file) {
+                if (!Files.exists(optimized)) {
+                    failures.add(icon.name());
+                    continue;
+                }
+                try {
+                    if ((icon.output() != optimized) && !link(icon.output(), optimized)) {
+                        Files.copy(optimized, icon.output());
+                    }
+                    if (manifest != null) {
+                        manifest.record(icon.name(), icon.input(), icon.attrs(), icon.output());
+                    }
+                    //svgo takes whole file lists, the time of each icon is not known
+                    recordIcon(icon, -1);
+                } catch (IOException e) {
+                    failures.add(icon.name());
+                    logger.log(Level.SEVERE, String.format("Icon '%s' failed", icon.name()), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Spreads the icons over at most {@code count} shards, the largest icons first, each going to the lightest shard.
+     */
+    protected List<List<Icon>> shard(List<Icon> icons, int count) {
+        List<List<Icon>> shards = new ArrayList<>();
+        PriorityQueue<Map.Entry<List<Icon>, Long>> lightest = new PriorityQueue<>(Map.Entry.comparingByValue());
+        icons.stream()
+                .sorted(Comparator.comparingLong((Icon icon) -> icon.attrs().size()).reversed())
+                .forEach(icon -> {
+                    Map.Entry<List<Icon>, Long> shard;
+                    if (shards.size() < count) {
+                        shard = new AbstractMap.SimpleEntry<>(new ArrayList<>(), 0L);
+                        shards.add(shard.getKey());
+                    } else {
+                        shard = lightest.poll();
+                    }
+                    shard.getKey().add(icon);
+                    shard.setValue(shard.getValue() + icon.attrs().size());
+                    lightest.add(shard);
+                });
+        return shards;
+    }
+
+    protected void optimizeShard(int index, List<Icon> shard) {
+        List<Integer> exitCodes = new ArrayList<>();
+        List<Icon> remaining = shard;
+        for (int attempt = 1; (attempt <= MAX_ATTEMPTS) && !remaining.isEmpty(); attempt++) {
+            if (attempt > 1) {
+                logger.warning(String.format("Shard %d: %d icon(s) not optimized, attempt %d", index, remaining.size(), attempt));
+            }
+            for (List<Icon> chunk : chunk(remaining)) {
+                exitCodes.add(svgo(index, chunk));
+            }
+            remaining = remaining.stream().filter(icon -> !Files.exists(icon.output())).toList();
+        }
+        logger.info(String.format("Shard %d: %d icon(s), %d byte(s), exit code(s) %s, %d failed", index, shard.size(),
+                shard.stream().mapToLong(icon -> icon.attrs().size()).sum(), exitCodes, remaining.size()));
+    }
+
+    /**
+     * Splits the icons of a shard so that the file lists of each svgo call stay below {@link #MAX_COMMAND_LENGTH}.
+     */
+    protected List<List<Icon>> chunk(List<Icon> icons) {
+        List<List<Icon>> chunks = new ArrayList<>();
+        List<Icon> chunk = new ArrayList<>();
+        int length = 0;
+        for (Icon icon : icons) {
+            int iconLength = icon.input().toAbsolutePath().toString().length() + icon.output().toAbsolutePath().toString().length() + 2;
+            if (!chunk.isEmpty() && (length + iconLength > MAX_COMMAND_LENGTH)) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                length = 0;
+            }
+            chunk.add(icon);
+            length += iconLength;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Runs svgo over the given icons, its output being logged line by line with the shard index, and returns its exit code.
+     */
+    protected int svgo(int index, List<Icon> icons) {
+        List<String> command = new ArrayList<>(List.of("svgo", "-i"));
+        icons.forEach(icon -> command.add(icon.input().toAbsolutePath().toString()));
+        command.add("-o");
+        icons.forEach(icon -> command.add(icon.output().toAbsolutePath().toString()));
+        ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
 
         try {
             Process process = processBuilder.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                logger.info(line);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    logger.info(String.format("[shard %d] %s", index, line));
+                }
             }
-
             int exitCode = process.waitFor();
-            logger.info("Exited with code: " + exitCode);
-
-        } catch (IOException | InterruptedException e) {
+            logger.fine(String.format("Shard %d: svgo exited with code %d for %d icon(s)", index, exitCode, icons.size()));
+            return exitCode;
+        } catch (IOException e) {
             logger.log(Level.SEVERE, "optimizeUsingNodeJSModule", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.SEVERE, "optimizeUsingNodeJSModule", e);
+        }
+        return -1;
+    }
+
+    @Override
+    protected void optimizeInternal(Path icon, Path optimized) {
+        svgo(0, List.of(new Icon(icon.getFileName().toString(), icon, null, optimized)));
+    }
+
+    private void delete(Path optimized) {
+        try {
+            Files.deleteIfExists(optimized);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 }
@@ -0,0 +1,543 @@
+package m4z.app.etl.svg;
+
+import m4z.app.config.AppConfig;
+import org.jsoup.nodes.Attribute;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Applies the rules of {@link DefaultOptimizer} while reading the icon, event by event, without building a document.
+ * <p>
+ * Elements are serialized as soon as they are read, except the content of groups which may still turn out empty or hold
+ * a single group, that content being held back until the group is known to stay. The start tag of the root is written
+ * last, once known whether a kept element refers to {@code xlink}, and the one of any other element is held until it is
+ * known to have children, a childless element being written self-closed when its name was read as an empty element tag,
+ * as jsoup does. An empty element tag read after an element of the same name was written with an end tag sends the icon
+ * to the DOM path, as do the icons the streaming parser rejects, such as those relying on entities declared by a DTD.
+ */
+public class StreamingOptimizer extends DefaultOptimizer {
+    private static final Logger logger = Logger.getLogger(StreamingOptimizer.class.getName());
+    private static final XMLInputFactory factory = newFactory();
+
+    public StreamingOptimizer(AppConfig config) {
+        super(config);
+    }
+
+    @Override
+    protected void optimizeInternal(Path icon, Path optimized) {
+        String content;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(icon))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                content = new IconRewriter(reader).rewrite();
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            logger.fine(String.format("Streaming failed on %s, optimizing its document instead: %s", icon, e.getMessage()));
+            super.optimizeInternal(icon, optimized);
+            return;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (content == null) {
+            throw new RuntimeException("No svg element in " + icon);
+        }
+        write(optimized, content);
+    }
+
+    protected static String attributeName(XMLStreamReader reader, int index) {
+        String prefix = reader.getAttributePrefix(index);
+        String name = reader.getAttributeLocalName(index);
+        return ((prefix == null) || prefix.isEmpty()) ? name : prefix + ":" + name;
+    }
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        //prefixes are kept as part of the names, as jsoup does, undeclared ones being common in exported icons
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        String reportCData = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+        if (factory.isPropertySupported(reportCData)) {
+            factory.setProperty(reportCData, true);
+        }
+        return factory;
+    }
+
+    /**
+     * Copies the root svg element of one icon, serializing it the way the DOM path does once its whitespace is removed.
+     */
+    protected class IconRewriter {
+        private final XMLStreamReader reader;
+        /**
+         * Content of the root, its start tag being written once the whole icon is read.
+         */
+        private final StringBuilder out = new StringBuilder();
+        /**
+         * Elements open below the root.
+         */
+        private final List<Tag> open = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        /**
+         * Names read as empty element tags, and names of the childless elements written with an end tag.
+         */
+        private final Set<String> selfClosing = new HashSet<>();
+        private final Set<String> endTagged = new HashSet<>();
+        /**
+         * Whether the last node written at this level is text, whitespace following text being kept as is.
+         */
+        private boolean afterText;
+        private boolean rootContent;
+        private boolean xlink;
+        private int lastEvent;
+        private int startOffset;
+
+        protected IconRewriter(XMLStreamReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Returns the serialized root svg element, or {@code null} when the document has none.
+         */
+        public String rewrite() throws XMLStreamException, IOException {
+            while (reader.hasNext()) {
+                if ((next() == XMLStreamConstants.START_ELEMENT) && isSvg(reader.getLocalName())) {
+                    String name = reader.getLocalName();
+                    String attributes = rootAttributes();
+                    rewriteContent();
+                    //empty element tags read after the root still change how jsoup writes the elements inside it
+                    while (reader.hasNext()) {
+                        next();
+                    }
+                    StringBuilder svg = new StringBuilder("<").append(name).append(" xmlns=\"http://www.w3.org/2000/svg\"");
+                    if (xlink) {
+                        svg.append(" xmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+                    }
+                    svg.append(attributes);
+                    if (rootContent) {
+                        svg.append('>').append(out).append("</").append(name).append('>');
+                    } else {
+                        closeChildless(svg, name);
+                    }
+                    return svg.toString();
+                }
+            }
+            return null;
+        }
+
+        protected void rewriteContent() throws XMLStreamException, IOException {
+            while (true) {
+                int event = next();
+                switch (event) {
+                    case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE -> text.append(reader.getText());
+                    case XMLStreamConstants.START_ELEMENT -> {
+                        if (reader.getLocalName().contains(":")) {
+                            //custom element, the text around it is joined as it would be once the element is removed
+                            skipElement();
+                        } else {
+                            startElement(flushText());
+                        }
+                    }
+                    case XMLStreamConstants.END_ELEMENT -> {
+                        flushText();
+                        if (open.isEmpty()) {
+                            return;
+                        }
+                        endElement();
+                    }
+                    case XMLStreamConstants.CDATA -> {
+                        flushText();
+                        if (!isBlank(reader.getText())) {
+                            hasContent();
+                        }
+                        sink().append("<![CDATA[").append(reader.getText()).append("]]>");
+                        afterText = false;
+                    }
+                    case XMLStreamConstants.COMMENT -> {
+                        flushText();
+                        sink().append("<!--").append(reader.getText()).append("-->");
+                        afterText = false;
+                    }
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION -> {
+                        flushText();
+                        String data = reader.getPIData();
+                        sink().append("<?").append(reader.getPITarget())
+                                .append(((data == null) || data.isEmpty()) ? "" : " " + data).append("?>");
+                        afterText = false;
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the next event, noting the names of empty element tags, which the parser reports as a start tag
+         * immediately followed by an end tag at the same offset.
+         */
+        protected int next() throws XMLStreamException {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                startOffset = reader.getLocation().getCharacterOffset();
+            } else if ((event == XMLStreamConstants.END_ELEMENT) && (lastEvent == XMLStreamConstants.START_ELEMENT)
+                    && (startOffset >= 0) && (reader.getLocation().getCharacterOffset() == startOffset)) {
+                String name = reader.getLocalName();
+                if (endTagged.contains(name)) {
+                    throw new XMLStreamException(String.format("<%s/> read after a childless %s was written with an end tag", name, name));
+                }
+                selfClosing.add(name);
+            }
+            lastEvent = event;
+            return event;
+        }
+
+        protected void skipElement() throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0) {
+                switch (next()) {
+                    case XMLStreamConstants.START_ELEMENT -> depth++;
+                    case XMLStreamConstants.END_ELEMENT -> depth--;
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the attributes of the root as the DOM path rewrites them, namespaces aside.
+         */
+        protected String rootAttributes() throws IOException {
+            Attribute width = null;
+            Attribute height = null;
+            Attribute viewBox = null;
+            String style = "";
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                Attribute attribute = new Attribute(attributeName(reader, i), reader.getAttributeValue(i));
+                if (!(attribute.getKey().contains(":") || attribute.getKey().contains("-"))) {
+                    correctFontSize(attribute);
+                    switch (attribute.getKey()) {
+                        case "width" -> width = attribute;
+                        case "height" -> height = attribute;
+                        case "viewBox" -> viewBox = attribute;
+                        case "style" -> style = attribute.getValue();
+                        default -> {
+                        }
+                    }
+                }
+            }
+            Map<String, String> styles = toMap(style);
+
+            StringBuilder attributes = new StringBuilder();
+            String w = (width != null) ? correctSize(width.getValue()) : styles.containsKey("width") ? correctSize(styles.get("width")) : null;
+            String h = (height != null) ? correctSize(height.getValue()) : styles.containsKey("height") ? correctSize(styles.get("height")) : null;
+            if (w != null) {
+                appendAttribute(attributes, "width", w);
+            }
+            if (h != null) {
+                appendAttribute(attributes, "height", h);
+            }
+            if (viewBox != null) {
+                correctViewBox(viewBox);
+                appendAttribute(attributes, "viewBox", viewBox.getValue());
+            } else {
+                appendAttribute(attributes, "viewBox", String.format("0 0 %s %s", (w != null) ? w : "", (h != null) ? h : ""));
+            }
+            return attributes.toString();
+        }
+
+        /**
+         * @param dropped whitespace read right before the element, which is kept if a group turns out to be discarded
+         */
+        protected void startElement(String dropped) throws IOException {
+            Tag parent = parent();
+            String name = reader.getLocalName();
+            StringBuilder start = new StringBuilder();
+            boolean refers = appendStartTag(start);
+            if (isGroup(name)) {
+                start.append('>');
+                int offset = (parent instanceof Group group) && group.isPending() ? group.pending.length() : -1;
+                open.add(new Group(name, start.toString(), refers, offset, dropped, afterText));
+            } else {
+                if ((parent instanceof Group group) && group.isPending()) {
+                    //holding anything but a group, the parent stays as it is
+                    keep(group);
+                }
+                //written once known whether it has children, those of its parents being written now
+                sink();
+                open.add(new Tag(name, start.toString(), refers));
+            }
+            afterText = false;
+        }
+
+        /**
+         * Appends the start tag but its closing bracket, telling whether it refers to {@code xlink}.
+         */
+        protected boolean appendStartTag(Appendable tag) throws IOException {
+            boolean refers = false;
+            tag.append('<').append(reader.getLocalName());
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String name = attributeName(reader, i);
+                if (name.equals("xlink:href")) {
+                    appendAttribute(tag, name, reader.getAttributeValue(i));
+                    refers = true;
+                } else if (!(name.contains(":") || name.contains("-"))) {
+                    appendAttribute(tag, name, optimizeGeometry(name, correctFontSize(name, reader.getAttributeValue(i))));
+                }
+            }
+            return refers;
+        }
+
+        protected void endElement() throws IOException {
+            Tag tag = open.removeLast();
+            afterText = false;
+            if (!(tag instanceof Group group)) {
+                Appendable sink = sink();
+                if (tag.start == null) {
+                    sink.append("</").append(tag.name).append('>');
+                } else {
+                    sink.append(tag.start);
+                    xlink |= tag.xlink;
+                    closeChildless(sink, tag.name);
+                }
+                return;
+            }
+            if (!group.isPending()) {
+                sink().append("</").append(group.name).append('>');
+            } else if (group.groups == 1) {
+                //replaced by its only child group, text and comments around it being dropped
+                survive(group.pending.substring(group.from, group.to), false);
+            } else if (group.content) {
+                survive(group.start + group.pending + "</" + group.name + ">", group.xlink);
+            } else {
+                logger.finer("Discard empty group");
+                //the text on both sides is joined, as it would be once the group is removed
+                afterText = group.textBefore;
+                text.append(group.whitespaceBefore);
+                return;
+            }
+            if ((parent() instanceof Group parent) && parent.isPending()) {
+                parent.to = parent.pending.length();
+            }
+        }
+
+        /**
+         * Closes a childless element as jsoup does: self-closed when its name was read as an empty element tag.
+         */
+        protected void closeChildless(Appendable sink, String name) throws IOException {
+            if (selfClosing.contains(name)) {
+                sink.append(" />");
+            } else {
+                endTagged.add(name);
+                sink.append("></").append(name).append('>');
+            }
+        }
+
+        /**
+         * Writes a group that turned out to stay, counting it in its parent.
+         *
+         * @param refers whether the start tag of the group is written and refers to {@code xlink}
+         */
+        protected void survive(String content, boolean refers) throws IOException {
+            if ((parent() instanceof Group parent) && parent.isPending()) {
+                parent.groups++;
+                parent.from = parent.pending.length();
+                if (parent.groups > 1) {
+                    keep(parent);
+                }
+            }
+            sink().append(content);
+            xlink |= refers;
+        }
+
+        /**
+         * Writes what was held back of a group known to stay, its content being written as it comes from now on.
+         */
+        protected void keep(Group group) throws IOException {
+            int index = open.lastIndexOf(group);
+            StringBuilder pending = group.pending;
+            group.pending = null;
+            Tag parent = (index > 0) ? open.get(index - 1) : null;
+            if ((parent instanceof Group parentGroup) && parentGroup.isPending()) {
+                parentGroup.groups++;
+                parentGroup.from = group.offset;
+                if (parentGroup.groups > 1) {
+                    keep(parentGroup);
+                }
+            }
+            sink().append(group.start).append(pending);
+            xlink |= group.xlink;
+        }
+
+        /**
+         * Writes the text read since the last node unless it is whitespace between two tags, returning what was dropped.
+         */
+        protected String flushText() throws IOException {
+            String dropped = "";
+            if (!text.isEmpty()) {
+                if (!isBlank(text)) {
+                    hasContent();
+                }
+                //even dropped, the text is a child and its parent cannot be self-closed
+                Appendable sink = sink();
+                if (afterText || !isWhitespace(text)) {
+                    escape(sink, text, false);
+                    afterText = true;
+                } else {
+                    dropped = text.toString();
+                }
+                text.setLength(0);
+            }
+            return dropped;
+        }
+
+        private void hasContent() {
+            if (parent() instanceof Group parent) {
+                parent.content = true;
+            }
+        }
+
+        private Tag parent() {
+            return open.isEmpty() ? null : open.getLast();
+        }
+
+        /**
+         * Returns where the next node goes, the innermost group still held back or the output itself, after writing the
+         * start tags held by the elements it goes into.
+         */
+        private Appendable sink() throws IOException {
+            int pending = open.size() - 1;
+            while ((pending >= 0) && !((open.get(pending) instanceof Group group) && group.isPending())) {
+                pending--;
+            }
+            Appendable sink = (pending >= 0) ? ((Group) open.get(pending)).pending : out;
+            for (Tag tag : open.subList(pending + 1, open.size())) {
+                if (!(tag instanceof Group) && (tag.start != null)) {
+                    sink.append(tag.start).append('>');
+                    xlink |= tag.xlink;
+                    tag.start = null;
+                }
+            }
+            rootContent |= (pending < 0);
+            return sink;
+        }
+    }
+
+    /**
+     * An open element, its start tag being held back until it is known to have children.
+     */
+    protected static class Tag {
+        protected final String name;
+        protected String start;
+        protected final boolean xlink;
+
+        protected Tag(String name, String start, boolean xlink) {
+            this.name = name;
+            this.start = start;
+            this.xlink = xlink;
+        }
+    }
+
+    /**
+     * An open group, its content being held back until it is known to stay.
+     */
+    protected static class Group extends Tag {
+        private final int offset;
+        private final String whitespaceBefore;
+        private final boolean textBefore;
+        private StringBuilder pending = new StringBuilder();
+        private int groups;
+        private int from;
+        private int to;
+        private boolean content;
+
+        protected Group(String name, String start, boolean xlink, int offset, String whitespaceBefore, boolean textBefore) {
+            super(name, start, xlink);
+            this.offset = offset;
+            this.whitespaceBefore = whitespaceBefore;
+            this.textBefore = textBefore;
+        }
+
+        protected boolean isPending() {
+            return pending != null;
+        }
+    }
+
+    /**
+     * Applies {@link #correctFontSize(Attribute)} to values holding a size in pixels or points only, sparing the others
+     * an attribute and its logging.
+     */
+    protected String correctFontSize(String name, String value) {
+        if (!(value.contains("px") || value.contains("pt"))) {
+            return value;
+        }
+        Attribute attribute = new Attribute(name, value);
+        correctFontSize(attribute);
+        return attribute.getValue();
+    }
+
+    protected static boolean isSvg(String name) {
+        return name.toLowerCase(Locale.ROOT).equals("svg");
+    }
+
+    protected static boolean isGroup(String name) {
+        return name.toLowerCase(Locale.ROOT).equals("g");
+    }
+
+    /**
+     * Tells whether text leaves a group empty, as the blank text nodes of jsoup do.
+     */
+    protected static boolean isBlank(CharSequence text) {
+        return consistsOf(text, " \t\n\f\r");
+    }
+
+    /**
+     * Tells whether text is removed from between two tags, as {@code \s} in the serialization pattern does.
+     */
+    protected static boolean isWhitespace(CharSequence text) {
+        return consistsOf(text, " \t\n\u000B\f\r");
+    }
+
+    private static boolean consistsOf(CharSequence text, String characters) {
+        for (int i = 0; i < text.length(); i++) {
+            if (characters.indexOf(text.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static void appendAttribute(Appendable out, String name, String value) throws IOException {
+        out.append(' ').append(name).append("=\"");
+        escape(out, value, true);
+        out.append('"');
+    }
+
+    /**
+     * Escapes as jsoup does for XML output, non-breaking spaces included.
+     */
+    protected static void escape(Appendable out, CharSequence text, boolean attribute) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> out.append("&amp;");
+                case '<' -> out.append("&lt;");
+                case '>' -> out.append(attribute ? ">" : "&gt;");
+                case '"' -> out.append(attribute ? "&quot;" : "\"");
+                case '\u00a0' -> out.append("&#xa0;");
+                default -> out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package m4z.app.etl.svg;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Discards empty groups and collapses groups whose only child is another group, keeping the inner one.
+ * <p>
+ * Visiting the tree bottom-up settles every group after its descendants in a single traversal, which gives the same
+ * result as repeating {@code g:empty} / {@code g>g:only-child} selections until none matches, without their
+ * quadratic cost on deeply nested icons.
+ */
+public class SvgTreeCompactor {
+    private static final Logger logger = Logger.getLogger(SvgTreeCompactor.class.getName());
+    private static final Evaluator EMPTY = QueryParser.parse(":empty");
+
+    public static Element compact(Element svg) {
+        int removed = 0;
+        int collapsed = 0;
+        for (Element element : bottomUp(svg)) {
+            if ((element == svg) || !element.normalName().equals("g")) {
+                continue;
+            }
+            if (element.is(EMPTY)) {
+                element.remove();
+                removed++;
+            } else {
+                Element onlyChild = onlyChild(element);
+                if ((onlyChild != null) && onlyChild.normalName().equals("g")) {
+                    element.replaceWith(onlyChild);
+                    collapsed++;
+                }
+            }
+        }
+        logger.finer(String.format("%d empty group(s) removed, %d group(s) collapsed", removed, collapsed));
+        return svg;
+    }
+
+    /**
+     * Returns the only child element, text and comments aside, or {@code null}.
+     * Child nodes are scanned directly as the cached element list of jsoup is not refreshed by {@code replaceWith}.
+     */
+    protected static Element onlyChild(Element element) {
+        Element onlyChild = null;
+        for (Node node : element.childNodes()) {
+            if (node instanceof Element child) {
+                if (onlyChild != null) {
+                    return null;
+                }
+                onlyChild = child;
+            }
+        }
+        return onlyChild;
+    }
+
+    /**
+     * Lists the elements of the tree, each one after all of its descendants.
+     */
+    protected static List<Element> bottomUp(Element root) {
+        List<Element> topDown = new ArrayList<>();
+        Deque<Element> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Element element = stack.pop();
+            topDown.add(element);
+            element.children().forEach(stack::push);
+        }
+        return topDown.reversed();
+    }
+}
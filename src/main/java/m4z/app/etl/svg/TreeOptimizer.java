@@ -0,0 +1,267 @@
+package m4z.app.etl.svg;
+
+import m4z.app.config.AppConfig;
+import m4z.app.etl.IconStore;
+import m4z.app.etl.Processor;
+import m4z.app.metrics.MetricsRegistry;
+import m4z.app.tools.Hashes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optimizes a tree of icons file by file into a mirrored tree.
+ * <p>
+ * The input tree is listed first, creating every output directory on the way, then the icons are optimized either one
+ * after the other or spread over a work-stealing pool (virtual threads for remote optimizers) as set by
+ * {@code optimizer.concurrency}. Icons sharing the same file, as hard linked by the extractor, make a single task
+ * optimizing the first of them and linking the others to its output. A failing icon is reported without stopping the
+ * others.
+ */
+public abstract class TreeOptimizer extends Processor {
+    private static final Logger logger = Logger.getLogger(TreeOptimizer.class.getName());
+
+    private CompressionReport report;
+
+    public TreeOptimizer(AppConfig config) {
+        super(config);
+    }
+
+    @Override
+    protected String stageName() {
+        return "optimizer";
+    }
+
+    @Override
+    public void process() {
+        Path source = input(getConfig().app().optimizer().input().path());
+        Path target = output(getConfig().app().optimizer().output(), getConfig().app().optimizer().archive());
+        optimize(source, target);
+    }
+
+    protected void optimize(Path source, Path target) {
+        OptimizerManifest manifest = getConfig().app().optimizer().incremental() ? OptimizerManifest.load(target, fingerprint()) : null;
+        Set<String> icons = new HashSet<>();
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        Collection<List<Icon>> files = listIcons(source, target, icons, failures);
+        AppConfig.App.Report settings = getConfig().app().optimizer().report();
+        report = settings.active() ? new CompressionReport() : null;
+        optimizeFiles(files, manifest, failures);
+        metrics().add(MetricsRegistry.ERRORS, failures.size());
+        if (report != null) {
+            report.write(target, settings.worst());
+        }
+        IconStore.copyAliases(source, target);
+        if (manifest != null) {
+            manifest.prune(icons, target);
+            manifest.save();
+        }
+        if (!failures.isEmpty()) {
+            logger.severe(String.format("%d icon(s) failed: %s", failures.size(), failures));
+        }
+    }
+
+    /**
+     * Lists the icons of the input tree grouped by file, creating the output directories meanwhile so that
+     * concurrent optimizations never have to. An entry that cannot be read is reported as failed.
+     */
+    protected Collection<List<Icon>> listIcons(Path source, Path target, Set<String> icons, List<String> failures) {
+        Map<Object, List<Icon>> files = new LinkedHashMap<>();
+        Set<Path> libraries = new HashSet<>();
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path svg, BasicFileAttributes attrs) {
+                    if (svg.getFileName().toString().endsWith(".svg")) {
+                        String icon = relativize(source, svg);
+                        icons.add(icon);
+                        libraries.add(svg.getParent());
+                        Object key = (attrs.fileKey() != null) ? attrs.fileKey() : svg;
+                        files.computeIfAbsent(key, k -> new ArrayList<>())
+                                .add(new Icon(icon, svg, attrs, target.resolve(icon)));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    //resolved by name, the input and the output may be held by distinct file systems
+                    Path optimized = target.resolve(relativize(source, dir));
+                    try {
+                        Files.createDirectories(optimized);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    String icon = relativize(source, file);
+                    logger.log(Level.SEVERE, String.format("Icon '%s' unreadable", icon), exc);
+                    failures.add(icon);
+                    if (icon.endsWith(".svg")) {
+                        //kept in the manifest, its previous output staying until it can be read again
+                        icons.add(icon);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        metrics().add(MetricsRegistry.LIBRARIES, libraries.size());
+        return files.values();
+    }
+
+    protected void optimizeFiles(Collection<List<Icon>> files, OptimizerManifest manifest, List<String> failures) {
+        AppConfig.App.Concurrency concurrency = getConfig().app().optimizer().concurrency();
+        if (concurrency.active()) {
+            try (ExecutorService executor = newWorkStealingExecutor(concurrency)) {
+                CompletableFuture.allOf(files.stream()
+                        .map(file -> CompletableFuture.runAsync(() -> optimizeFile(file, manifest, failures), executor))
+                        .toArray(CompletableFuture[]::new)).join();
+            }
+        } else {
+            files.forEach(file -> optimizeFile(file, manifest, failures));
+        }
+    }
+
+    /**
+     * Optimizes the icons sharing a file, the first one actually optimized giving its output to the others as a link.
+     * The outputs are replaced rather than rewritten, as they may be links shared with other icons.
+     */
+    protected void optimizeFile(List<Icon> file, OptimizerManifest manifest, List<String> failures) {
+        Path linked = null;
+        for (Icon icon : file) {
+            try {
+                if (isUpToDate(icon, manifest)) {
+                    logger.finer("Unchanged, skipped " + icon.name());
+                    continue;
+                }
+                long start = System.nanoTime();
+                Files.deleteIfExists(icon.output());
+                if (!link(icon.output(), linked)) {
+                    optimizeInternal(icon.input(), icon.output());
+                    linked = icon.output();
+                }
+                if (manifest != null) {
+                    manifest.record(icon.name(), icon.input(), icon.attrs(), icon.output());
+                }
+                recordIcon(icon, start);
+            } catch (IOException | RuntimeException e) {
+                failures.add(icon.name());
+                logger.log(Level.SEVERE, String.format("Icon '%s' failed", icon.name()), e);
+            }
+        }
+    }
+
+    /**
+     * Tells whether the manifest holds the icon as already optimized, counting the lookup as a cache hit or miss, and
+     * carrying an up to date icon over into the report.
+     */
+    protected boolean isUpToDate(Icon icon, OptimizerManifest manifest) {
+        if (manifest == null) {
+            return false;
+        }
+        boolean upToDate = manifest.isUpToDate(icon.name(), icon.input(), icon.attrs(), icon.output());
+        metrics().cache(upToDate);
+        if (upToDate && (report != null)) {
+            //carried over without a time, so that the report still covers the whole tree
+            report.add(icon.name(), icon.attrs().size(), outputSize(icon), -1);
+        }
+        return upToDate;
+    }
+
+    /**
+     * Counts an optimized icon and its sizes, and the time spent on it since {@code start} unless negative, in the
+     * metrics and in the compression report.
+     */
+    protected void recordIcon(Icon icon, long start) {
+        long nanos = (start >= 0) ? System.nanoTime() - start : -1;
+        long bytesOut = outputSize(icon);
+        metrics().increment(MetricsRegistry.ICONS);
+        metrics().add(MetricsRegistry.BYTES_IN, icon.attrs().size());
+        metrics().add(MetricsRegistry.BYTES_OUT, bytesOut);
+        if (start >= 0) {
+            metrics().latency(start);
+        }
+        if (report != null) {
+            report.add(icon.name(), icon.attrs().size(), bytesOut, nanos);
+        }
+    }
+
+    protected long outputSize(Icon icon) {
+        try {
+            return Files.size(icon.output());
+        } catch (IOException e) {
+            logger.fine(String.format("Unable to size %s: %s", icon.output(), e));
+            return 0;
+        }
+    }
+
+    protected boolean link(Path optimized, Path linked) {
+        if (linked == null) {
+            return false;
+        }
+        try {
+            Files.createLink(optimized, linked);
+            logger.finer(String.format("Linked %s to %s", optimized, linked));
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.fine(String.format("Unable to link %s to %s: %s", optimized, linked, e));
+            return false;
+        }
+    }
+
+    /**
+     * Returns a work-stealing pool of {@code threads} workers, or a virtual thread per icon for optimizers mostly
+     * waiting on remote calls.
+     */
+    protected ExecutorService newWorkStealingExecutor(AppConfig.App.Concurrency concurrency) {
+        if (concurrency.virtual()) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newWorkStealingPool(concurrency.threads());
+    }
+
+    /**
+     * Identifies the optimization settings, a change invalidating every icon recorded in the manifest.
+     */
+    protected String fingerprint() {
+        return Hashes.sha256(getClass().getName());
+    }
+
+    protected abstract void optimizeInternal(Path icon, Path optimized);
+
+    protected String read(Path svg) {
+        try {
+            return Files.readString(svg, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected void write(Path svg, String content) {
+        write(svg, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void write(Path svg, byte[] content) {
+        try {
+            Files.write(svg, content);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected record Icon(String name, Path input, BasicFileAttributes attrs, Path output) {
+    }
+}
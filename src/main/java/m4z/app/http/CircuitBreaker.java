@@ -0,0 +1,38 @@
+package m4z.app.http;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Stops calling a remote service once it failed a given number of times in a row, for the rest of the run.
+ * <p>
+ * Failures are counted once the {@link HttpFetcher} retries are exhausted, a success resetting the count.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    private final String name;
+    private final int threshold;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean open = new AtomicBoolean();
+
+    public CircuitBreaker(String name, int threshold) {
+        this.name = name;
+        this.threshold = threshold;
+    }
+
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    public void success() {
+        consecutiveFailures.set(0);
+    }
+
+    public void failure(Throwable cause) {
+        if ((consecutiveFailures.incrementAndGet() >= threshold) && open.compareAndSet(false, true)) {
+            logger.warning(String.format("%s failed %d times in a row, no longer called: %s", name, threshold, cause));
+        }
+    }
+}
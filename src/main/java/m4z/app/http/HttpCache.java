@@ -0,0 +1,240 @@
+package m4z.app.http;
+
+import m4z.app.config.AppConfig;
+import m4z.app.tools.Hashes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Persistent cache of downloaded resources, keyed by the digest of their url.
+ * <p>
+ * Each entry is a {@code .body} file holding the payload and a {@code .meta} file holding the validators
+ * ({@code ETag}, {@code Last-Modified}) used to revalidate it with a conditional request, and its expiry when the
+ * server gave one, the entry being served without revalidation until then. The meta file is rewritten on each
+ * revalidation, and its modification time tracks the last access, the least recently used entries being evicted once
+ * the cache exceeds its size.
+ */
+public class HttpCache {
+    private static final Logger logger = Logger.getLogger(HttpCache.class.getName());
+    private static final String BODY = ".body";
+    private static final String META = ".meta";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicLong size = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public HttpCache(AppConfig.App.HttpCache settings) {
+        this(Paths.get(settings.path()), settings.maxSize() * 1024L * 1024L);
+    }
+
+    public HttpCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> bodies = Files.list(directory)) {
+                size.set(bodies.filter(path -> path.toString().endsWith(BODY)).mapToLong(this::sizeOf).sum());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the cached entry of the given url, or {@code null} when there is none.
+     */
+    public Entry lookup(String url) {
+        String key = key(url);
+        Path meta = directory.resolve(key + META);
+        Path body = directory.resolve(key + BODY);
+        if (!Files.exists(meta) || !Files.exists(body)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(meta)) {
+            properties.load(in);
+        } catch (IOException e) {
+            logger.warning(String.format("Unreadable cache entry %s: %s", meta, e));
+            return null;
+        }
+        if (!url.equals(properties.getProperty("url"))) {
+            return null;
+        }
+        String expires = properties.getProperty("expires");
+        return new Entry(key, body, properties.getProperty("etag"), properties.getProperty("lastModified"),
+                (expires == null) ? null : Long.valueOf(expires));
+    }
+
+    public byte[] read(Entry entry) throws IOException {
+        touch(entry);
+        return Files.readAllBytes(entry.body());
+    }
+
+    /**
+     * Opens the payload of an entry, read from its file as the stream is consumed.
+     */
+    public InputStream open(Entry entry) throws IOException {
+        touch(entry);
+        return Files.newInputStream(entry.body());
+    }
+
+    /**
+     * Counts a response served from the cache, either without contacting the server or after a {@code 304}.
+     */
+    public void hit(boolean revalidated) {
+        hits.increment();
+        if (revalidated) {
+            revalidations.increment();
+        }
+    }
+
+    /**
+     * Stores a payload read from the given stream, the entry being left out of the eviction it may trigger.
+     *
+     * @param expires time in milliseconds until which the entry is served without revalidation, {@code null} when it is
+     *                to be revalidated on each use
+     * @return the stored entry
+     */
+    public Entry store(String url, InputStream content, String etag, String lastModified, Long expires) throws IOException {
+        String key = key(url);
+        Path body = directory.resolve(key + BODY);
+        long previous = Files.exists(body) ? sizeOf(body) : 0;
+
+        //written aside then moved, readers never see a partial entry
+        Path bodyTmp = Files.createTempFile(directory, key, ".tmp");
+        long length;
+        try {
+            length = Files.copy(content, bodyTmp, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(bodyTmp);
+            throw e;
+        }
+        Files.move(bodyTmp, body, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeMeta(key, url, etag, lastModified, expires);
+        misses.increment();
+
+        if (size.addAndGet(length - previous) > maxBytes) {
+            evict(key);
+        }
+        return new Entry(key, body, etag, lastModified, expires);
+    }
+
+    /**
+     * Records a revalidation answered by a {@code 304}, the validators the server sent replacing the stored ones and
+     * the expiry being renewed.
+     */
+    public void refresh(String url, Entry entry, String etag, String lastModified, Long expires) throws IOException {
+        writeMeta(entry.key(), url, (etag != null) ? etag : entry.etag(),
+                (lastModified != null) ? lastModified : entry.lastModified(), expires);
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), revalidations.sum(), misses.sum(), size.get());
+    }
+
+    /**
+     * Drops the least recently used entries until the cache fits in its maximum size again, but the {@code kept} one.
+     */
+    protected synchronized void evict(String kept) {
+        if (size.get() <= maxBytes) {
+            return;
+        }
+        try (Stream<Path> metas = Files.list(directory)) {
+            List<Path> entries = metas.filter(path -> path.toString().endsWith(META))
+                    .filter(path -> !path.getFileName().toString().equals(kept + META))
+                    .sorted(Comparator.comparing(this::lastAccess))
+                    .toList();
+            for (Path meta : entries) {
+                if (size.get() <= maxBytes) {
+                    break;
+                }
+                String name = meta.getFileName().toString();
+                Path body = meta.resolveSibling(name.substring(0, name.length() - META.length()) + BODY);
+                long length = Files.exists(body) ? sizeOf(body) : 0;
+                Files.deleteIfExists(meta);
+                Files.deleteIfExists(body);
+                size.addAndGet(-length);
+                logger.fine("Evicted cache entry " + body);
+            }
+        } catch (IOException e) {
+            logger.warning("Cache eviction failed: " + e);
+        }
+    }
+
+    protected String key(String url) {
+        return Hashes.sha256(url);
+    }
+
+    private void writeMeta(String key, String url, String etag, String lastModified, Long expires) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        if (etag != null) {
+            properties.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("lastModified", lastModified);
+        }
+        if (expires != null) {
+            properties.setProperty("expires", String.valueOf(expires));
+        }
+        Path metaTmp = Files.createTempFile(directory, key, ".tmp");
+        try (OutputStream out = Files.newOutputStream(metaTmp)) {
+            properties.store(out, null);
+        }
+        Files.move(metaTmp, directory.resolve(key + META), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void touch(Entry entry) {
+        try {
+            Files.setLastModifiedTime(directory.resolve(entry.key() + META), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.fine("Unable to touch cache entry " + entry.key());
+        }
+    }
+
+    private FileTime lastAccess(Path meta) {
+        try {
+            return Files.getLastModifiedTime(meta);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public record Entry(String key, Path body, String etag, String lastModified, Long expires) {
+
+        public boolean isFresh() {
+            return (expires != null) && (System.currentTimeMillis() < expires);
+        }
+    }
+
+    public record Stats(long hits, long revalidations, long misses, long size) {
+
+        @Override
+        public String toString() {
+            return String.format("%d hit(s) of which %d revalidated, %d miss(es), %d byte(s) cached", hits, revalidations, misses, size);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package m4z.app.http;
+
+import m4z.app.config.AppConfig;
+import m4z.app.config.ProxyManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single entry point for every outgoing http call of the application.
+ * <p>
+ * One {@link HttpClient} is shared so that connections are reused, the number of concurrent requests per host is
+ * bounded, and transient failures (i/o errors, 429 and 5xx responses) are retried with an exponential backoff, jittered
+ * so that throttled requests do not come back all at once.
+ * Downloads go through the persistent {@link HttpCache} when {@code http.cache} is active.
+ */
+public class HttpFetcher {
+    private static final Logger logger = Logger.getLogger(HttpFetcher.class.getName());
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d{1,10})");
+    /**
+     * Delay between two attempts to take back the slot of a host after a backoff.
+     */
+    private static final long POLL_MILLIS = 20;
+    private static HttpFetcher instance;
+
+    private final AppConfig.App.Http settings;
+    private final HttpClient httpClient;
+    private final HttpCache cache;
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder latency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Long::max, 0);
+
+    public HttpFetcher(AppConfig.App.Http settings) {
+        this.settings = settings;
+        this.httpClient = HttpClient.newBuilder()
+                .proxy(ProxyManager.proxySelector())
+                .connectTimeout(Duration.ofSeconds(settings.connectTimeout()))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        this.cache = settings.cache().active() ? new HttpCache(settings.cache()) : null;
+    }
+
+    public static synchronized HttpFetcher getInstance(AppConfig config) {
+        if (instance == null) {
+            instance = new HttpFetcher(config.app().http());
+        }
+        return instance;
+    }
+
+    public HttpRequest.Builder newRequest(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(settings.requestTimeout()));
+    }
+
+    /**
+     * Downloads the given resource, failing with a {@link StatusException} unless it answers 200.
+     */
+    public byte[] get(String url) throws IOException {
+        if (cache == null) {
+            HttpResponse<byte[]> response = send(newRequest(URI.create(url)).build(), HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                throw new StatusException(url, response.statusCode());
+            }
+            return response.body();
+        }
+        return cache.read(fetchCached(url));
+    }
+
+    /**
+     * Opens the given resource, failing with a {@link StatusException} unless it answers 200. The payload is read from
+     * the connection as the stream is consumed, or from the cache file once stored when {@code http.cache} is active,
+     * so that it is never held in memory. The stream is to be closed.
+     */
+    public InputStream open(String url) throws IOException {
+        if (cache == null) {
+            HttpResponse<InputStream> response = send(newRequest(URI.create(url)).build(), HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() != 200) {
+                close(response);
+                throw new StatusException(url, response.statusCode());
+            }
+            return response.body();
+        }
+        return cache.open(fetchCached(url));
+    }
+
+    /**
+     * Returns the cache entry of the resource, revalidating it with a conditional request unless running offline, and
+     * storing the payload as it is downloaded when it changed.
+     */
+    protected HttpCache.Entry fetchCached(String url) throws IOException {
+        HttpCache.Entry entry = cache.lookup(url);
+        if (settings.cache().offline()) {
+            if (entry == null) {
+                throw new IOException("Offline mode, resource not cached: " + url);
+            }
+            cache.hit(false);
+            return entry;
+        }
+
+        if ((entry != null) && entry.isFresh()) {
+            logger.fine("Fresh, served from cache: " + url);
+            cache.hit(false);
+            return entry;
+        }
+
+        HttpRequest.Builder request = newRequest(URI.create(url));
+        if (entry != null) {
+            if (entry.etag() != null) {
+                request.header("If-None-Match", entry.etag());
+            }
+            if (entry.lastModified() != null) {
+                request.header("If-Modified-Since", entry.lastModified());
+            }
+        }
+        HttpResponse<InputStream> response = send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            if ((response.statusCode() == 304) && (entry != null)) {
+                logger.fine("Not modified, served from cache: " + url);
+                cache.refresh(url, entry,
+                        response.headers().firstValue("ETag").orElse(null),
+                        response.headers().firstValue("Last-Modified").orElse(null),
+                        expires(response.headers()));
+                cache.hit(true);
+                return entry;
+            }
+            if (response.statusCode() != 200) {
+                throw new StatusException(url, response.statusCode());
+            }
+            return cache.store(url, body,
+                    response.headers().firstValue("ETag").orElse(null),
+                    response.headers().firstValue("Last-Modified").orElse(null),
+                    expires(response.headers()));
+        }
+    }
+
+    /**
+     * Sends a request, retrying transient failures. The slot of the host is only held while a request is in flight and
+     * is left to the other requests during the backoff, a failure being counted once the retries are used up.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        Semaphore permits = permits(request.uri());
+        try {
+            for (int attempt = 0; ; attempt++) {
+                permits.acquire();
+                try {
+                    long start = System.nanoTime();
+                    HttpResponse<T> response = httpClient.send(request, handler);
+                    record(response, start);
+                    if (!isTransient(response.statusCode())) {
+                        return response;
+                    }
+                    if (attempt >= settings.maxRetries()) {
+                        failures.increment();
+                        return response;
+                    }
+                    logger.warning(String.format("%s answered %d, attempt %d", request.uri(), response.statusCode(), attempt + 1));
+                    close(response);
+                } catch (IOException e) {
+                    if (attempt >= settings.maxRetries()) {
+                        failures.increment();
+                        throw e;
+                    }
+                    logger.warning(String.format("%s failed (%s), attempt %d", request.uri(), e, attempt + 1));
+                } finally {
+                    permits.release();
+                }
+                retries.increment();
+                Thread.sleep(backoff(attempt));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + request.uri(), e);
+        }
+    }
+
+    /**
+     * Asynchronous flavour of {@link #send(HttpRequest, HttpResponse.BodyHandler)}, waiting for a free slot of the host
+     * before issuing the request, the slot being polled for without blocking after the backoff of each retry.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        Semaphore permits = permits(request.uri());
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(request, handler, permits, 0);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                             Semaphore permits, int attempt) {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<T>> sent;
+        try {
+            sent = httpClient.sendAsync(request, handler);
+        } catch (RuntimeException e) {
+            permits.release();
+            failures.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+        return sent
+                .handle((response, e) -> {
+                    permits.release();
+                    if (e == null) {
+                        record(response, start);
+                        if (!isTransient(response.statusCode())) {
+                            return CompletableFuture.completedFuture(response);
+                        }
+                        if (attempt >= settings.maxRetries()) {
+                            failures.increment();
+                            return CompletableFuture.completedFuture(response);
+                        }
+                        logger.warning(String.format("%s answered %d, attempt %d", request.uri(), response.statusCode(), attempt + 1));
+                        close(response);
+                    } else {
+                        if (attempt >= settings.maxRetries()) {
+                            failures.increment();
+                            return CompletableFuture.<HttpResponse<T>>failedFuture(e);
+                        }
+                        logger.warning(String.format("%s failed (%s), attempt %d", request.uri(), e, attempt + 1));
+                    }
+                    retries.increment();
+                    return acquireAsync(permits, backoff(attempt))
+                            .thenCompose(acquired -> sendAsync(request, handler, permits, attempt + 1));
+                })
+                .thenCompose(future -> future);
+    }
+
+    /**
+     * Returns the counters of the persistent cache, or {@code null} when it is not active.
+     */
+    public HttpCache.Stats getCacheStats() {
+        return cache == null ? null : cache.getStats();
+    }
+
+    public Stats getStats() {
+        return new Stats(requests.sum(), retries.sum(), failures.sum(), bytes.sum(),
+                latency.sum() / 1_000_000, maxLatency.get() / 1_000_000);
+    }
+
+    /**
+     * Returns until when a response may be served from the cache without revalidation, from its
+     * {@code Cache-Control: max-age} or else its {@code Expires} header, or {@code null} when it must be revalidated.
+     */
+    protected Long expires(HttpHeaders headers) {
+        String cacheControl = headers.firstValue("Cache-Control").orElse("").toLowerCase(Locale.ROOT);
+        if (cacheControl.contains("no-cache") || cacheControl.contains("no-store")) {
+            return null;
+        }
+        Matcher maxAge = MAX_AGE.matcher(cacheControl);
+        if (maxAge.find()) {
+            return System.currentTimeMillis() + Long.parseLong(maxAge.group(1)) * 1000;
+        }
+        try {
+            return headers.firstValue("Expires")
+                    .map(expires -> ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli())
+                    .orElse(null);
+        } catch (DateTimeParseException e) {
+            //an invalid date means already expired
+            return null;
+        }
+    }
+
+    protected boolean isTransient(int statusCode) {
+        return (statusCode == 429) || (statusCode >= 500);
+    }
+
+    /**
+     * Returns the delay before the next attempt, doubled on each retry and stretched by a random part of up to a half.
+     */
+    protected long backoff(int attempt) {
+        long delay = (long) settings.backoff() << Math.min(attempt, 10);
+        return delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Takes a slot of the host once the delay elapsed, polling for it rather than blocking a thread of the common pool.
+     */
+    private CompletableFuture<Void> acquireAsync(Semaphore permits, long delay) {
+        Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+        return CompletableFuture.supplyAsync(permits::tryAcquire, delayed)
+                .thenCompose(acquired -> acquired ? CompletableFuture.completedFuture(null) : acquireAsync(permits, POLL_MILLIS));
+    }
+
+    private Semaphore permits(URI uri) {
+        String host = uri.getHost() + ":" + uri.getPort();
+        return hosts.computeIfAbsent(host, key -> new Semaphore(settings.maxConnectionsPerHost()));
+    }
+
+    /**
+     * Releases the connection of a response whose body is a stream left unread.
+     */
+    private void close(HttpResponse<?> response) {
+        if (response.body() instanceof Closeable body) {
+            try {
+                body.close();
+            } catch (IOException e) {
+                logger.fine(String.format("Unable to close the response of %s: %s", response.uri(), e));
+            }
+        }
+    }
+
+    private void record(HttpResponse<?> response, long start) {
+        long elapsed = System.nanoTime() - start;
+        requests.increment();
+        latency.add(elapsed);
+        maxLatency.accumulate(elapsed);
+        Object body = response.body();
+        if (body instanceof byte[] content) {
+            bytes.add(content.length);
+        } else if (body instanceof String content) {
+            bytes.add(content.length());
+        } else {
+            response.headers().firstValueAsLong("Content-Length").ifPresent(bytes::add);
+        }
+    }
+
+    /**
+     * Counters accumulated since the fetcher was created, latencies being expressed in milliseconds.
+     */
+    public record Stats(long requests, long retries, long failures, long bytes, long totalLatency, long maxLatency) {
+
+        public long averageLatency() {
+            return requests == 0 ? 0 : totalLatency / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d request(s), %d retry(ies), %d failure(s), %d byte(s), latency avg %d ms max %d ms",
+                    requests, retries, failures, bytes, averageLatency(), maxLatency);
+        }
+    }
+
+    public static class StatusException extends IOException {
+        private final int statusCode;
+
+        public StatusException(String url, int statusCode) {
+            super(String.format("%s answered %d", url, statusCode));
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
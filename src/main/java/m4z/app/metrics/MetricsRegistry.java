@@ -0,0 +1,260 @@
+package m4z.app.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Counters, icon latencies and durations of the processing stages of a run, shared by every {@code Processor}.
+ * <p>
+ * Each stage holds named counters, {@code cache_hits} and {@code cache_misses} giving its cache hit ratio, and a
+ * histogram of the time spent on each icon. The registry is written as {@value #JSON} and, in the Prometheus text
+ * format, as {@value #PROMETHEUS}, every metric carrying its stage as label.
+ */
+public class MetricsRegistry {
+    public static final String JSON = "metrics.json";
+    public static final String PROMETHEUS = "metrics.prom";
+
+    public static final String ICONS = "icons";
+    public static final String LIBRARIES = "libraries";
+    public static final String BYTES_IN = "bytes_in";
+    public static final String BYTES_OUT = "bytes_out";
+    public static final String ERRORS = "errors";
+    public static final String CACHE_HITS = "cache_hits";
+    public static final String CACHE_MISSES = "cache_misses";
+
+    private static final Logger logger = Logger.getLogger(MetricsRegistry.class.getName());
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final String PREFIX = "m4z_";
+    private static final Map<String, String> HELP = Map.of(
+            ICONS, "Icons processed",
+            LIBRARIES, "Libraries or directories processed",
+            BYTES_IN, "Bytes read",
+            BYTES_OUT, "Bytes written",
+            ERRORS, "Icons or libraries that failed",
+            CACHE_HITS, "Lookups served by a cache or found up to date",
+            CACHE_MISSES, "Lookups not served by a cache");
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    public Stage stage(String name) {
+        return stages.computeIfAbsent(name, Stage::new);
+    }
+
+    /**
+     * Writes the registry as JSON and as Prometheus text into the given directory.
+     */
+    public void write(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            Files.writeString(directory.resolve(JSON), toJson(), StandardCharsets.UTF_8);
+            Files.writeString(directory.resolve(PROMETHEUS), toPrometheus(), StandardCharsets.UTF_8);
+            logger.info("Metrics written to " + directory.toAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String toJson() {
+        Map<String, Object> json = new TreeMap<>();
+        sortedStages().forEach(stage -> json.put(stage.name, stage.toMap()));
+        return gson.toJson(Map.of("stages", json));
+    }
+
+    public String toPrometheus() {
+        List<Stage> sorted = sortedStages();
+        StringBuilder text = new StringBuilder();
+        Set<String> counters = new TreeSet<>();
+        sorted.forEach(stage -> counters.addAll(stage.counters.keySet()));
+        for (String counter : counters) {
+            family(text, counter + "_total", HELP.getOrDefault(counter, counter), "counter");
+            sorted.stream()
+                    .filter(stage -> stage.counters.containsKey(counter))
+                    .forEach(stage -> sample(text, counter + "_total", stage, "", stage.count(counter)));
+        }
+
+        family(text, "stage_duration_seconds", "Time spent in the stage", "gauge");
+        sorted.forEach(stage -> sample(text, "stage_duration_seconds", stage, "", seconds(stage.duration.sum())));
+        family(text, "icons_per_second", "Icons processed per second of stage duration", "gauge");
+        sorted.forEach(stage -> sample(text, "icons_per_second", stage, "", stage.throughput()));
+        family(text, "cache_hit_ratio", "Share of the cache lookups served", "gauge");
+        sorted.stream()
+                .filter(stage -> stage.cacheHitRatio() != null)
+                .forEach(stage -> sample(text, "cache_hit_ratio", stage, "", stage.cacheHitRatio()));
+
+        family(text, "icon_latency_seconds", "Time spent on each icon", "histogram");
+        for (Stage stage : sorted) {
+            Histogram latency = stage.latency;
+            long cumulated = 0;
+            for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+                cumulated += latency.buckets[i].sum();
+                sample(text, "icon_latency_seconds_bucket", stage, ",le=\"" + Histogram.bound(i) + "\"", cumulated);
+            }
+            sample(text, "icon_latency_seconds_bucket", stage, ",le=\"+Inf\"", latency.count());
+            sample(text, "icon_latency_seconds_sum", stage, "", seconds(latency.sum.sum()));
+            sample(text, "icon_latency_seconds_count", stage, "", latency.count());
+        }
+        return text.toString();
+    }
+
+    private List<Stage> sortedStages() {
+        return stages.values().stream().sorted(Comparator.comparing(stage -> stage.name)).toList();
+    }
+
+    private static void family(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, Stage stage, String labels, Number value) {
+        text.append(PREFIX).append(name).append("{stage=\"").append(stage.name.replace("\\", "\\\\").replace("\"", "\\\""))
+                .append('"').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * Metrics of one stage, safe to update from concurrent tasks.
+     */
+    public static class Stage {
+        private final String name;
+        private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+        private final Histogram latency = new Histogram();
+        private final LongAdder duration = new LongAdder();
+
+        protected Stage(String name) {
+            this.name = name;
+        }
+
+        public void increment(String counter) {
+            add(counter, 1);
+        }
+
+        public void add(String counter, long value) {
+            counters.computeIfAbsent(counter, key -> new LongAdder()).add(value);
+        }
+
+        public void cache(boolean hit) {
+            increment(hit ? CACHE_HITS : CACHE_MISSES);
+        }
+
+        /**
+         * Records the time spent on one icon since {@code start}, as given by {@link System#nanoTime()}.
+         */
+        public void latency(long start) {
+            latency.record(System.nanoTime() - start);
+        }
+
+        public void duration(long nanos) {
+            duration.add(nanos);
+        }
+
+        public long count(String counter) {
+            LongAdder adder = counters.get(counter);
+            return (adder == null) ? 0 : adder.sum();
+        }
+
+        /**
+         * Returns the share of cache lookups that hit, or {@code null} when the stage made none.
+         */
+        public Double cacheHitRatio() {
+            long hits = count(CACHE_HITS);
+            long lookups = hits + count(CACHE_MISSES);
+            return (lookups == 0) ? null : (double) hits / lookups;
+        }
+
+        public double throughput() {
+            long nanos = duration.sum();
+            return (nanos == 0) ? 0 : count(ICONS) / seconds(nanos);
+        }
+
+        protected Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("durationSeconds", seconds(duration.sum()));
+            map.put("iconsPerSecond", throughput());
+            Map<String, Long> values = new TreeMap<>();
+            counters.forEach((counter, adder) -> values.put(counter, adder.sum()));
+            map.put("counters", values);
+            if (cacheHitRatio() != null) {
+                map.put("cacheHitRatio", cacheHitRatio());
+            }
+            map.put("iconLatency", latency.toMap());
+            return map;
+        }
+    }
+
+    /**
+     * Latencies counted in fixed buckets, as Prometheus histograms are.
+     */
+    protected static class Histogram {
+        /**
+         * Upper bounds of the buckets, in seconds.
+         */
+        protected static final double[] BOUNDS = {0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10};
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        protected Histogram() {
+            Arrays.setAll(buckets, i -> new LongAdder());
+        }
+
+        protected void record(long nanos) {
+            int bucket = 0;
+            while ((bucket < BOUNDS.length) && (seconds(nanos) > BOUNDS[bucket])) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        protected static String bound(int index) {
+            return BigDecimal.valueOf(BOUNDS[index]).stripTrailingZeros().toPlainString();
+        }
+
+        protected long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        protected Map<String, Object> toMap() {
+            long count = count();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count);
+            map.put("sumSeconds", seconds(sum.sum()));
+            map.put("meanSeconds", (count == 0) ? 0 : seconds(sum.sum()) / count);
+            map.put("maxSeconds", seconds(max.get()));
+            Map<String, Long> cumulated = new LinkedHashMap<>();
+            long total = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                total += buckets[i].sum();
+                cumulated.put(bound(i), total);
+            }
+            cumulated.put("+Inf", count);
+            map.put("buckets", cumulated);
+            return map;
+        }
+    }
+}
@@ -1,45 +1,417 @@
 package m4z.app.test;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import m4z.app.config.AppConfig;
 import m4z.app.config.ConfigManager;
+import m4z.app.etl.Pipeline;
 import m4z.app.etl.drawio.IconsExtractor;
+import m4z.app.etl.drawio.MxIcon;
 import m4z.app.etl.plantuml.IconToSpriteTransformer;
 import m4z.app.etl.svg.DefaultOptimizer;
 import m4z.app.etl.svg.NanoOptimizer;
+import m4z.app.etl.svg.OptimizerManifest;
+import m4z.app.etl.svg.Optimizers;
+import m4z.app.etl.svg.PathDataOptimizer;
 import m4z.app.etl.svg.SVGOptimizer;
+import m4z.app.etl.svg.StreamingOptimizer;
+import m4z.app.http.HttpCache;
+import m4z.app.http.HttpFetcher;
+import m4z.app.tools.Hashes;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 public class GeneralTester {
     public static void main(String[] args) throws IOException {
-        testIconsExtractor();
-        //testSVGOptimizer();
-        //testNanoOptimizer();
-        testDefaultOptimizer();
-        testIconToSpriteTransformer();
+        if (ConfigManager.getConfig().app().pipeline().active()) {
+            testPipeline();
+        } else {
+            testIconsExtractor();
+            //testSVGOptimizer();
+            //testNanoOptimizer();
+            testDefaultOptimizer();
+            testStreamingOptimizer();
+            //testOptimizer();
+            testIconToSpriteTransformer();
+        }
+        testHttpCache();
+        testConcurrentDedup();
+        testNanoFallback();
+        testIconSpriteRendering();
+        testBundleShards();
+        testPathDataOptimizer();
+        testMxIcon();
     }
 
     public static void testIconsExtractor() throws IOException {
         IconsExtractor iconsExtractor = new IconsExtractor(ConfigManager.getConfig());
-        iconsExtractor.process();
+        iconsExtractor.run();
     }
 
     public static void testIconToSpriteTransformer() {
         IconToSpriteTransformer transformer = new IconToSpriteTransformer(ConfigManager.getConfig());
-        transformer.process();
+        transformer.run();
     }
 
     public static void testDefaultOptimizer() {
         DefaultOptimizer optimizer = new DefaultOptimizer(ConfigManager.getConfig());
-        optimizer.process();
+        optimizer.run();
+    }
+
+    /**
+     * Runs the optimizer selected by {@code optimizer.type}.
+     */
+    public static void testOptimizer() {
+        Optimizers.create(ConfigManager.getConfig()).run();
+    }
+
+    public static void testPipeline() {
+        Pipeline pipeline = new Pipeline(ConfigManager.getConfig());
+        pipeline.run();
+    }
+
+    /**
+     * Fetches three times from a local stand-in server: the second call, opening the resource as a stream, must be
+     * answered by a 304 and served from the cache, and the third one, the 304 having renewed the expiry of the entry,
+     * served without reaching the server. The resource is then streamed once more without cache.
+     */
+    public static void testHttpCache() throws IOException {
+        byte[] body = "<mxlibrary>[]</mxlibrary>".getBytes(StandardCharsets.UTF_8);
+        AtomicInteger ok = new AtomicInteger();
+        AtomicInteger notModified = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/library.xml", exchange -> {
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                ok.incrementAndGet();
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            Path cache = Files.createTempDirectory("http-cache");
+            HttpFetcher fetcher = new HttpFetcher(new AppConfig.App.Http(null, null, null, null, null,
+                    new AppConfig.App.HttpCache(true, cache.toString(), null, false)));
+            String url = String.format("http://localhost:%d/library.xml", server.getAddress().getPort());
+            for (int i = 0; i < 3; i++) {
+                if (i == 1) {
+                    try (InputStream in = fetcher.open(url)) {
+                        check(Arrays.equals(body, in.readAllBytes()), "cached stream differs");
+                    }
+                } else {
+                    check(Arrays.equals(body, fetcher.get(url)), "cached body differs");
+                }
+            }
+            System.out.println(fetcher.getStats());
+            System.out.println(fetcher.getCacheStats());
+            HttpCache.Stats stats = fetcher.getCacheStats();
+            HttpFetcher uncached = new HttpFetcher(new AppConfig.App.Http(null, null, null, null, null, null));
+            try (InputStream in = uncached.open(url)) {
+                check(Arrays.equals(body, in.readAllBytes()), "streamed body differs");
+            }
+            check(ok.get() == 2, ok.get() + " response(s) 200 instead of 2");
+            check(notModified.get() == 1, notModified.get() + " response(s) 304 instead of 1");
+            check((stats.misses() == 1) && (stats.hits() == 2) && (stats.revalidations() == 1), "unexpected cache stats " + stats);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Extracts the configured input with {@code dedup: alias}, serially then concurrently, both runs having to give the
+     * same icons and aliases.
+     */
+    public static void testConcurrentDedup() throws IOException {
+        Map<String, String> serial = snapshot(extractAliased(false));
+        Map<String, String> concurrent = snapshot(extractAliased(true));
+        System.out.printf("%d file(s) extracted serially, %d concurrently%n", serial.size(), concurrent.size());
+        check(serial.equals(concurrent), "concurrent extraction differs from the serial one");
+    }
+
+    private static Path extractAliased(boolean concurrent) throws IOException {
+        AppConfig.App app = ConfigManager.getConfig().app();
+        AppConfig.App.Processor settings = app.extractor();
+        Path output = Files.createTempDirectory("icons");
+        AppConfig.App.Concurrency concurrency = new AppConfig.App.Concurrency(concurrent, settings.concurrency().threads(),
+                settings.concurrency().virtual());
+        AppConfig.App.Processor extractor = new AppConfig.App.Processor(settings.type(), settings.input(), output.toString(),
+                settings.archive(), concurrency, settings.incremental(), "alias", settings.remote(), settings.layout(),
+                settings.precision(), settings.report());
+        new IconsExtractor(new AppConfig(new AppConfig.App(app.name(), app.version(), app.proxy(), app.http(), app.pipeline(),
+                extractor, app.optimizer(), app.transformer(), app.metrics()))).run();
+        return output;
+    }
+
+    /**
+     * Digest of each file of a tree, by path relative to its root.
+     */
+    private static Map<String, String> snapshot(Path root) throws IOException {
+        Map<String, String> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path file : paths.filter(Files::isRegularFile).toList()) {
+                files.put(root.relativize(file).toString(), Hashes.sha256(file));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Optimizes a few icons against a local stand-in of the nano service answering 429 and 503: each icon must be tried
+     * {@code maxRetries + 1} times until {@code failureThreshold} icons failed, the breaker then opening, and every icon
+     * must be written by the default optimizer as it would be on its own.
+     */
+    public static void testNanoFallback() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/nano", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders((calls.incrementAndGet() % 2 == 0) ? 503 : 429, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            Path icons = Files.createTempDirectory("icons");
+            for (int i = 1; i <= 6; i++) {
+                Files.writeString(icons.resolve("icon" + i + ".svg"), String.format("<svg xmlns=\"http://www.w3.org/2000/svg\" "
+                        + "width=\"%d\" height=\"%d\"><g><rect width=\"%d\" height=\"%d\"/></g></svg>", i, i, i, i));
+            }
+            int retries = 2;
+            int threshold = 2;
+            AppConfig.App.Http http = new AppConfig.App.Http(null, null, null, retries, 10, null);
+            String endpoint = String.format("http://localhost:%d/nano", server.getAddress().getPort());
+            Path nano = Files.createTempDirectory("nano");
+            new NanoOptimizer(optimizerConfig(http, icons, nano, new AppConfig.App.Remote(endpoint, 1, threshold)), new HttpFetcher(http)).run();
+            Path fallback = Files.createTempDirectory("default");
+            new DefaultOptimizer(optimizerConfig(http, icons, fallback, null)).run();
+
+            System.out.printf("%d call(s) to the nano stand-in%n", calls.get());
+            check(calls.get() == threshold * (retries + 1),
+                    String.format("%d call(s) instead of %d, the breaker did not open", calls.get(), threshold * (retries + 1)));
+            Map<String, String> expected = snapshot(fallback);
+            expected.remove(OptimizerManifest.FILE_NAME);
+            Map<String, String> written = snapshot(nano);
+            written.remove(OptimizerManifest.FILE_NAME);
+            check((expected.size() == 6) && expected.equals(written), "fallback output differs from the default optimizer");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Optimizes the configured icons, along with a few written with empty element tags, by document and by streaming,
+     * both having to write the same bytes.
+     */
+    public static void testStreamingOptimizer() throws IOException {
+        AppConfig.App.Http http = ConfigManager.getConfig().app().http();
+        Path edges = Files.createTempDirectory("edges");
+        String[] icons = {
+                "<svg width=\"10\" height=\"10\"><path d=\"M0 0\"/><path></path><rect></rect></svg>",
+                "<svg><rect></rect><rect/></svg>",
+                "<svg width=\"1px\" height=\"2\"/>",
+                "<svg><g><g><path/></g></g><g></g><text> a <g/> b </text><text/></svg>",
+                "<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\"><defs><linearGradient id=\"l\"/></defs><use xlink:href=\"#l\"/></svg>",
+                "<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\"><g xlink:href=\"#l\"><g><rect/></g></g></svg>",
+                "<svg><x:y><path/></x:y><path></path><a><!--c--></a><a/></svg>"};
+        for (int i = 0; i < icons.length; i++) {
+            Files.writeString(edges.resolve("edge" + i + ".svg"), icons[i]);
+        }
+        for (Path input : new Path[]{Path.of(ConfigManager.getConfig().app().optimizer().input().path()), edges}) {
+            Path document = Files.createTempDirectory("document");
+            new DefaultOptimizer(optimizerConfig(http, input, document, null)).run();
+            Path streaming = Files.createTempDirectory("streaming");
+            new StreamingOptimizer(optimizerConfig(http, input, streaming, null)).run();
+
+            Map<String, String> expected = snapshot(document);
+            expected.remove(OptimizerManifest.FILE_NAME);
+            Map<String, String> written = snapshot(streaming);
+            written.remove(OptimizerManifest.FILE_NAME);
+            System.out.printf("%d icon(s) of %s optimized by streaming%n", written.size(), input);
+            check(!expected.isEmpty() && expected.equals(written), "streaming output differs from the document one for " + input);
+        }
+    }
+
+    /**
+     * Renders, with the PlantUML jar given by the {@code plantuml.jar} system property, a diagram of another directory
+     * loading a sprite through the procedures of an icon layout index, and the view of the index: both must draw the
+     * sprite. Skipped when no jar is given.
+     */
+    public static void testIconSpriteRendering() throws IOException {
+        String jar = System.getProperty("plantuml.jar");
+        if (jar == null) {
+            System.out.println("No plantuml.jar given, sprite rendering not checked");
+            return;
+        }
+        Path root = Files.createTempDirectory("render");
+        Path icons = Files.createDirectories(root.resolve("icons").resolve("Lib"));
+        Files.writeString(icons.resolve("Probe.svg"),
+                "<svg width=\"16\" height=\"16\" viewBox=\"0 0 16 16\"><path d=\"M0 0 L16 0 L16 8 Z\" fill=\"#1A2B3C\"/></svg>");
+        AppConfig.App app = ConfigManager.getConfig().app();
+        AppConfig.App.Processor settings = app.transformer();
+        AppConfig.App.Processor transformer = new AppConfig.App.Processor(settings.type(), settings.input(), settings.output(),
+                settings.archive(), settings.concurrency(), settings.incremental(), settings.dedup(), settings.remote(),
+                new AppConfig.App.Layout(IconToSpriteTransformer.ICON, null, null), settings.precision(), settings.report());
+        Path sprites = root.resolve("sprites");
+        new IconToSpriteTransformer(new AppConfig(new AppConfig.App(app.name(), app.version(), app.proxy(), app.http(),
+                app.pipeline(), app.extractor(), app.optimizer(), transformer, app.metrics()))).transform(root.resolve("icons"), sprites);
+
+        String spriteName;
+        try (Stream<Path> files = Files.list(sprites.resolve("Lib_sprites"))) {
+            spriteName = files.findFirst().orElseThrow().getFileName().toString().replace(".puml", "");
+        }
+        Path diagram = Files.createDirectories(root.resolve("diagrams")).resolve("diagram.puml");
+        Files.writeString(diagram, String.join("\n", "@startuml", "!$SPRITES = \"../sprites\"",
+                "!include ../sprites/Lib.puml", "$" + spriteName + "()", "rectangle \"<$" + spriteName + ">\" as probe", "@enduml"));
+        for (Path puml : new Path[]{diagram, sprites.resolve("Lib_view.puml")}) {
+            Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-Djava.awt.headless=true", "-jar", jar, "-tsvg", "-failfast2", puml.getFileName().toString())
+                    .directory(puml.getParent().toFile()).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            int exitCode;
+            try {
+                exitCode = process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            Path svg = puml.resolveSibling(puml.getFileName().toString().replace(".puml", ".svg"));
+            System.out.printf("%s rendered by PlantUML with exit code %d%n", puml, exitCode);
+            check((exitCode == 0) && Files.readString(svg).toUpperCase().contains("#1A2B3C"),
+                    "sprite " + spriteName + " not drawn in " + puml + " " + output);
+        }
+    }
+
+    /**
+     * Writes a sharded bundle twice, the second time with one more icon: only the shard of the new sprite may change.
+     */
+    public static void testBundleShards() throws IOException {
+        Path icons = Files.createTempDirectory("shards");
+        Path library = Files.createDirectories(icons.resolve("Lib"));
+        for (int i = 0; i < 40; i++) {
+            Files.writeString(library.resolve("Icon" + i + ".svg"), "<svg width=\"8\" height=\"8\"><path d=\"M0 0 L" + i + " 8\"/></svg>");
+        }
+        Path sprites = Files.createTempDirectory("sprites");
+        bundleTransformer(8).transform(icons, sprites);
+        Map<String, String> before = snapshot(sprites);
+        Files.writeString(library.resolve("Icon17b.svg"), "<svg width=\"8\" height=\"8\"><path d=\"M0 0 L8 1\"/></svg>");
+        bundleTransformer(8).transform(icons, sprites);
+        Map<String, String> after = snapshot(sprites);
+
+        long changed = before.keySet().stream().filter(file -> !before.get(file).equals(after.get(file))).count();
+        System.out.printf("%d shard file(s), %d changed by a new icon%n", before.size() - 1, changed);
+        check((before.size() > 2) && before.keySet().equals(after.keySet()) && (changed == 1),
+                "a new icon changed " + changed + " shard file(s) of " + before.keySet() + " -> " + after.keySet());
+    }
+
+    private static IconToSpriteTransformer bundleTransformer(int maxSprites) {
+        AppConfig.App app = ConfigManager.getConfig().app();
+        AppConfig.App.Processor settings = app.transformer();
+        AppConfig.App.Processor transformer = new AppConfig.App.Processor(settings.type(), settings.input(), settings.output(),
+                settings.archive(), settings.concurrency(), settings.incremental(), settings.dedup(), settings.remote(),
+                new AppConfig.App.Layout(IconToSpriteTransformer.BUNDLE, null, maxSprites), settings.precision(), settings.report());
+        return new IconToSpriteTransformer(new AppConfig(new AppConfig.App(app.name(), app.version(), app.proxy(), app.http(),
+                app.pipeline(), app.extractor(), app.optimizer(), transformer, app.metrics())));
+    }
+
+    /**
+     * Shortens path data at a precision of 3, the output having to read back as the expected path and to be left as is
+     * when shortened again.
+     */
+    public static void testPathDataOptimizer() {
+        PathDataOptimizer optimizer = new PathDataOptimizer(3);
+        String[][] paths = {
+                //arc flags packed with the next number
+                {"M0 0a1 1 0 011 1", "M0 0A1 1 0 0 1 1 1"},
+                {"M0 0a1 1 0 110.5.5", "M0 0A1 1 0 1 1 .5.5"},
+                {"M0 0 a1 1 0 0 1 1 1 a2 2 0 1 0 .5.5", "M0 0A1 1 0 0 1 1 1a2 2 0 1 0 .5.5"},
+                //exponents
+                {"M1e2 2E-1l1.5e1-3e+0", "M100 .2l15-3"},
+                {"M1e2.5 0 1", "M100 .5 0 1"},
+                //signs and dots separating numbers
+                {"M0 0-.5.5.5.5z", "M0 0-.5.5h1z"},
+                {"M-.5.5-.5.5", "M-.5.5h0"},
+                //pairs after a move are lines, relative after a relative move
+                {"M1 2 3 4 5 6", "M1 2 3 4 5 6"},
+                {"m1 2 3 4 5 6", "M1 2 4 6l5 6"},
+                //a relative move after a close starts from the subpath start
+                {"M10 10l5 0 0 5zm1 1h2", "M10 10h5v5zm1 1h2"},
+                {"M10 10h5v5zM10 10 l3 3", "M10 10h5v5zm0 0 3 3"},
+                {"M0,0C1,1 2,2 3,3 4,4 5,5 6,6S7 7 8 8", "M0 0C1 1 2 2 3 3 4 4 5 5 6 6S7 7 8 8"},
+                {"M1.23456 1l.0004.0004", "M1.235 1h0"},
+                //kept as is when it does not parse
+                {"M0 0 1e", "M0 0 1e"},
+                {"M0 0 1e400 1", "M0 0 1e400 1"}};
+        for (String[] path : paths) {
+            String optimized = optimizer.optimize("d", path[0]);
+            check(optimized.equals(path[1]), path[0] + " optimized as " + optimized + " instead of " + path[1]);
+            check(optimizer.optimize("d", optimized).equals(optimized), optimized + " changed when optimized again");
+        }
+        System.out.printf("%d path(s) optimized%n", paths.length);
+    }
+
+    /**
+     * Reads icons given as SVG markup, as Base64 and percent-encoded SVG data URLs, and as a graph model: each one must
+     * be read as the same markup, or model, and written back under the field it was read from.
+     */
+    public static void testMxIcon() {
+        String svg = "<svg width=\"1e+1\"><path d=\"M0 0\"/></svg>";
+        String base64 = Base64.getEncoder().encodeToString(svg.getBytes(StandardCharsets.UTF_8));
+        String[][] icons = {
+                {"svg", new Gson().toJson(svg), svg},
+                {"data", "\"data:image/svg+xml;base64," + base64 + "\"", svg},
+                {"data", "\"data:image/svg+xml,%3Csvg%20width=%221e+1%22%3E%3Cpath%20d=%22M0%200%22/%3E%3C%2Fsvg%3E\"", svg},
+                {"xml", "\"<mxGraphModel/>\"", "<mxGraphModel/>"}};
+        Gson gson = new Gson();
+        for (String[] icon : icons) {
+            MxIcon read = gson.fromJson("{\"" + icon[0] + "\":" + icon[1] + ",\"w\":10,\"title\":\"t\"}", MxIcon.class);
+            String payload = read.isGraphModel() ? read.getXml() : read.getSvgPayload();
+            check(icon[2].equals(payload), icon[1] + " read as " + payload);
+            JsonObject written = gson.toJsonTree(read).getAsJsonObject();
+            check(written.has(icon[0]) && (written.size() == 3), icon[1] + " written as " + written);
+        }
+        System.out.printf("%d icon(s) bound%n", icons.length);
+    }
+
+    private static AppConfig optimizerConfig(AppConfig.App.Http http, Path input, Path output, AppConfig.App.Remote remote) {
+        AppConfig.App app = ConfigManager.getConfig().app();
+        AppConfig.App.Processor optimizer = new AppConfig.App.Processor(null, new AppConfig.App.Input(input.toString(),
+                new AppConfig.App.Filter(false, null)), output.toString(), null, null, false, null, remote, null,
+                app.optimizer().precision(), null);
+        return new AppConfig(new AppConfig.App(app.name(), app.version(), app.proxy(), http, app.pipeline(),
+                app.extractor(), optimizer, app.transformer(), app.metrics()));
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
     }
 
     public static void testSVGOptimizer() {
         SVGOptimizer optimizer = new SVGOptimizer(ConfigManager.getConfig());
-        optimizer.process();
+        optimizer.run();
     }
 
     public static void testNanoOptimizer() {
         NanoOptimizer optimizer = new NanoOptimizer(ConfigManager.getConfig());
-        optimizer.process();
+        optimizer.run();
     }
 }